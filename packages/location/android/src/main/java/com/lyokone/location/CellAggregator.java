@@ -0,0 +1,348 @@
+package com.lyokone.location;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates dwell time, sample count and accuracy per spatial cell.
+ * <p>
+ * Cells are geohashes or slippy map tiles packed into a {@code long}, kept in
+ * an open addressing table over parallel primitive arrays. At most
+ * {@code maxCells} cells are held; the least recently visited one is evicted
+ * to make room, after being reported if it changed since the last flush.
+ * <p>
+ * A report carries the totals of a cell since it last entered the table, so
+ * it supersedes the earlier reports of that cell. An evicted cell visited
+ * again starts over from zero: its new totals add to the ones reported on
+ * eviction. It is not thread safe.
+ */
+final class CellAggregator {
+    static final int SCHEME_GEOHASH = 0;
+    static final int SCHEME_TILE = 1;
+
+    private static final String GEOHASH_ALPHABET = "0123456789bcdefghjkmnpqrstuvwxyz";
+    private static final double MAX_TILE_LATITUDE = 85.05112878;
+    private static final int EMPTY = -1;
+
+    interface CellVisitor {
+        void visit(long key, long dwellMillis, int count, double meanAccuracy, boolean evicted);
+    }
+
+    private final int scheme;
+    private final int precision;
+    private final long maxGapMillis;
+    private final CellVisitor visitor;
+
+    // Hash table of entry indices, linear probing
+    private final int[] table;
+    private final int mask;
+    private final int shift;
+
+    // Entries
+    private final int capacity;
+    private final long[] keys;
+    private final long[] dwellMillis;
+    private final int[] counts;
+    private final double[] accuracySums;
+    private final boolean[] dirty;
+    private int size;
+
+    // Recency list over entry indices, head is the most recently visited
+    private final int[] newer;
+    private final int[] older;
+    private int head = EMPTY;
+    private int tail = EMPTY;
+
+    private int[] dirtyEntries;
+    private int dirtyCount;
+
+    private boolean hasPrevious;
+    private long previousKey;
+    private long previousMillis;
+
+    /**
+     * @param precision geohash length (1 to 12) or tile zoom level (0 to 30)
+     * @param maxGapMillis time between two fixes above which the gap is not
+     *                     counted as dwell time
+     * @param visitor receives changed cells on {@link #flush} and on eviction
+     */
+    CellAggregator(int scheme, int precision, int maxCells, long maxGapMillis, CellVisitor visitor) {
+        checkArguments(scheme, precision, maxCells);
+        this.scheme = scheme;
+        this.precision = precision;
+        this.maxGapMillis = maxGapMillis;
+        this.visitor = visitor;
+
+        capacity = maxCells;
+        keys = new long[capacity];
+        dwellMillis = new long[capacity];
+        counts = new int[capacity];
+        accuracySums = new double[capacity];
+        dirty = new boolean[capacity];
+        newer = new int[capacity];
+        older = new int[capacity];
+        dirtyEntries = new int[Math.min(capacity, 64)];
+
+        int bits = 32 - Integer.numberOfLeadingZeros(capacity * 2 - 1);
+        table = new int[1 << Math.max(bits, 1)];
+        Arrays.fill(table, EMPTY);
+        mask = table.length - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(table.length);
+    }
+
+    /** Throws what the constructor would for these arguments. */
+    static void checkArguments(int scheme, int precision, int maxCells) {
+        if (scheme == SCHEME_GEOHASH && (precision < 1 || precision > 12)) {
+            throw new IllegalArgumentException("Geohash precision must be between 1 and 12");
+        }
+        if (scheme == SCHEME_TILE && (precision < 0 || precision > 30)) {
+            throw new IllegalArgumentException("Tile zoom must be between 0 and 30");
+        }
+        if (maxCells < 1) {
+            throw new IllegalArgumentException("maxCells must be positive");
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void onFix(double latitude, double longitude, double accuracy, long timeMillis) {
+        long key = scheme == SCHEME_GEOHASH
+                ? geohash(latitude, longitude, precision)
+                : tile(latitude, longitude, precision);
+
+        // The time until this fix is spent where the previous one was
+        if (hasPrevious) {
+            long gap = timeMillis - previousMillis;
+            if (gap > 0 && gap <= maxGapMillis) {
+                int previous = find(previousKey);
+                if (previous != EMPTY) {
+                    dwellMillis[previous] += gap;
+                    markDirty(previous);
+                }
+            }
+        }
+        hasPrevious = true;
+        previousKey = key;
+        previousMillis = timeMillis;
+
+        int entry = find(key);
+        if (entry == EMPTY) {
+            entry = insert(key);
+        } else {
+            moveToHead(entry);
+        }
+        counts[entry]++;
+        accuracySums[entry] += accuracy;
+        markDirty(entry);
+    }
+
+    /** Reports every cell changed since the last flush. */
+    int flush() {
+        int reported = 0;
+        for (int i = 0; i < dirtyCount; i++) {
+            int entry = dirtyEntries[i];
+            if (dirty[entry]) {
+                dirty[entry] = false;
+                report(entry, false);
+                reported++;
+            }
+        }
+        dirtyCount = 0;
+        return reported;
+    }
+
+    void clear() {
+        Arrays.fill(table, EMPTY);
+        Arrays.fill(dirty, false);
+        size = 0;
+        dirtyCount = 0;
+        head = EMPTY;
+        tail = EMPTY;
+        hasPrevious = false;
+    }
+
+    /** Formats a cell key as a geohash string or a {@code z/x/y} tile path. */
+    String cellId(long key) {
+        if (scheme == SCHEME_GEOHASH) {
+            char[] chars = new char[precision];
+            for (int i = precision - 1; i >= 0; i--) {
+                chars[i] = GEOHASH_ALPHABET.charAt((int) (key & 31));
+                key >>>= 5;
+            }
+            return new String(chars);
+        }
+        return precision + "/" + (key >>> 32) + "/" + (key & 0xFFFFFFFFL);
+    }
+
+    static long geohash(double latitude, double longitude, int precision) {
+        double minLatitude = -90;
+        double maxLatitude = 90;
+        double minLongitude = -180;
+        double maxLongitude = 180;
+        long hash = 0;
+        for (int bit = 0; bit < precision * 5; bit++) {
+            hash <<= 1;
+            if ((bit & 1) == 0) {
+                double mid = (minLongitude + maxLongitude) / 2;
+                if (longitude >= mid) {
+                    hash |= 1;
+                    minLongitude = mid;
+                } else {
+                    maxLongitude = mid;
+                }
+            } else {
+                double mid = (minLatitude + maxLatitude) / 2;
+                if (latitude >= mid) {
+                    hash |= 1;
+                    minLatitude = mid;
+                } else {
+                    maxLatitude = mid;
+                }
+            }
+        }
+        return hash;
+    }
+
+    static long tile(double latitude, double longitude, int zoom) {
+        long n = 1L << zoom;
+        double clamped = Math.max(-MAX_TILE_LATITUDE, Math.min(MAX_TILE_LATITUDE, latitude));
+        double radians = Math.toRadians(clamped);
+        long x = (long) Math.floor((longitude + 180) / 360 * n);
+        long y = (long) Math.floor((1 - Math.log(Math.tan(radians) + 1 / Math.cos(radians)) / Math.PI) / 2 * n);
+        x = Math.max(0, Math.min(n - 1, x));
+        y = Math.max(0, Math.min(n - 1, y));
+        return (x << 32) | y;
+    }
+
+    private void report(int entry, boolean evicted) {
+        visitor.visit(keys[entry], dwellMillis[entry], counts[entry],
+                counts[entry] > 0 ? accuracySums[entry] / counts[entry] : 0, evicted);
+    }
+
+    private int slotOf(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    private int find(long key) {
+        for (int slot = slotOf(key); ; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (entry == EMPTY) {
+                return EMPTY;
+            }
+            if (keys[entry] == key) {
+                return entry;
+            }
+        }
+    }
+
+    private int insert(long key) {
+        int entry;
+        if (size < capacity) {
+            entry = size++;
+        } else {
+            entry = tail;
+            if (dirty[entry]) {
+                dirty[entry] = false;
+                report(entry, true);
+            }
+            removeFromTable(keys[entry]);
+            unlink(entry);
+        }
+
+        keys[entry] = key;
+        dwellMillis[entry] = 0;
+        counts[entry] = 0;
+        accuracySums[entry] = 0;
+
+        int slot = slotOf(key);
+        while (table[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = entry;
+        linkAtHead(entry);
+        return entry;
+    }
+
+    /** Backward shift deletion, keeping every probe sequence unbroken. */
+    private void removeFromTable(long key) {
+        int hole = slotOf(key);
+        while (keys[table[hole]] != key) {
+            hole = (hole + 1) & mask;
+        }
+        for (int slot = (hole + 1) & mask; table[slot] != EMPTY; slot = (slot + 1) & mask) {
+            int home = slotOf(keys[table[slot]]);
+            boolean stays = hole <= slot
+                    ? hole < home && home <= slot
+                    : hole < home || home <= slot;
+            if (!stays) {
+                table[hole] = table[slot];
+                hole = slot;
+            }
+        }
+        table[hole] = EMPTY;
+    }
+
+    private void markDirty(int entry) {
+        if (dirty[entry]) {
+            return;
+        }
+        if (dirtyCount == dirtyEntries.length) {
+            compactDirtyEntries();
+        }
+        dirty[entry] = true;
+        dirtyEntries[dirtyCount++] = entry;
+    }
+
+    /**
+     * Evicted entries leave stale indices behind, so drop them before growing
+     * the list; it never needs to hold more than one index per entry.
+     */
+    private void compactDirtyEntries() {
+        int kept = 0;
+        for (int entry = 0; entry < size; entry++) {
+            if (dirty[entry]) {
+                dirtyEntries[kept++] = entry;
+            }
+        }
+        dirtyCount = kept;
+        if (dirtyCount == dirtyEntries.length) {
+            dirtyEntries = Arrays.copyOf(dirtyEntries, Math.min(capacity, dirtyEntries.length * 2));
+        }
+    }
+
+    private void moveToHead(int entry) {
+        if (entry == head) {
+            return;
+        }
+        unlink(entry);
+        linkAtHead(entry);
+    }
+
+    private void linkAtHead(int entry) {
+        newer[entry] = EMPTY;
+        older[entry] = head;
+        if (head != EMPTY) {
+            newer[head] = entry;
+        }
+        head = entry;
+        if (tail == EMPTY) {
+            tail = entry;
+        }
+    }
+
+    private void unlink(int entry) {
+        int before = newer[entry];
+        int after = older[entry];
+        if (before != EMPTY) {
+            older[before] = after;
+        } else {
+            head = after;
+        }
+        if (after != EMPTY) {
+            newer[after] = before;
+        } else {
+            tail = before;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.lyokone.location;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the reports of a {@link CellAggregator} until the next batch is sent.
+ * <p>
+ * A flushed report supersedes the pending one of the same cell. Evicted
+ * reports are final, so the evictions of one cell are merged into a single
+ * report flagged {@code evicted}; a consumer adds it to what it received for
+ * that cell before. Each kind is capped at {@code maxCells} cells, dropping
+ * the least recently reported one, so nothing grows while no one drains the
+ * batch. It is not thread safe.
+ */
+final class CellBatch implements CellAggregator.CellVisitor {
+    private static final class Report {
+        long dwellMillis;
+        int count;
+        double accuracySum;
+    }
+
+    private final LinkedHashMap<Long, Report> evicted;
+    private final LinkedHashMap<Long, Report> flushed;
+
+    CellBatch(int maxCells) {
+        evicted = cappedMap(maxCells);
+        flushed = cappedMap(maxCells);
+    }
+
+    int size() {
+        return evicted.size() + flushed.size();
+    }
+
+    @Override
+    public void visit(long key, long dwellMillis, int count, double meanAccuracy, boolean evicted) {
+        Report report;
+        if (evicted) {
+            // Whatever was flushed for this cell is contained in its final totals
+            flushed.remove(key);
+            report = this.evicted.get(key);
+        } else {
+            report = null;
+        }
+        if (report == null) {
+            report = new Report();
+            (evicted ? this.evicted : flushed).put(key, report);
+        }
+        report.dwellMillis += dwellMillis;
+        report.count += count;
+        report.accuracySum += meanAccuracy * count;
+    }
+
+    /** The pending reports as cell events, leaving the batch empty. */
+    ArrayList<HashMap<String, Object>> drain(CellAggregator aggregator) {
+        ArrayList<HashMap<String, Object>> cells = new ArrayList<>(size());
+        for (Map.Entry<Long, Report> entry : evicted.entrySet()) {
+            cells.add(toEvent(aggregator, entry.getKey(), entry.getValue(), true));
+        }
+        for (Map.Entry<Long, Report> entry : flushed.entrySet()) {
+            cells.add(toEvent(aggregator, entry.getKey(), entry.getValue(), false));
+        }
+        evicted.clear();
+        flushed.clear();
+        return cells;
+    }
+
+    private static HashMap<String, Object> toEvent(CellAggregator aggregator, long key, Report report,
+                                                   boolean evicted) {
+        HashMap<String, Object> cell = new HashMap<>();
+        cell.put("cell", aggregator.cellId(key));
+        cell.put("dwellTime", (double) report.dwellMillis);
+        cell.put("count", report.count);
+        cell.put("accuracy", report.count > 0 ? report.accuracySum / report.count : 0);
+        cell.put("evicted", evicted);
+        return cell;
+    }
+
+    private static LinkedHashMap<Long, Report> cappedMap(final int maxCells) {
+        return new LinkedHashMap<Long, Report>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Report> eldest) {
+                return size() > maxCells;
+            }
+        };
+    }
+}
@@ -0,0 +1,231 @@
+package com.lyokone.location;
+
+/**
+ * Propagates a position between sparse GNSS fixes from heading, step and
+ * acceleration samples.
+ * <p>
+ * This class has no Android dependencies and never reads a clock: every input
+ * carries its own {@code elapsedRealtimeNanos} timestamp, so the same sequence
+ * of calls always yields the same estimates. It is not thread safe.
+ */
+final class DeadReckoning {
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+    private static final double STANDARD_GRAVITY = 9.80665;
+
+    // A step older than this means the device is no longer being carried by a walking user
+    private static final long STEP_TIMEOUT_NANOS = 2_000_000_000L;
+    // Acceleration noise (m/s^2, smoothed) below which the device is considered at rest
+    private static final double STATIONARY_THRESHOLD = 0.15;
+    private static final double ACCELERATION_SMOOTHING = 0.1;
+
+    private static final double MIN_STEP_LENGTH_METERS = 0.3;
+    private static final double MAX_STEP_LENGTH_METERS = 1.5;
+    private static final int MIN_STEPS_FOR_CALIBRATION = 6;
+
+    /** Result of {@link #estimate}, reused by the caller between ticks. */
+    static final class Estimate {
+        double latitude;
+        double longitude;
+        double accuracy;
+        double speed;
+        double heading;
+        double confidence;
+        long elapsedRealtimeNanos;
+        long sinceFixNanos;
+    }
+
+    // Tunables
+    private double stepLengthMeters = 0.7;
+    private long maxPropagationNanos = 30_000_000_000L;
+    private double accuracyGrowthMetersPerSecond = 1.5;
+
+    // Last real fix
+    private boolean hasFix;
+    private double fixLatitude;
+    private double fixLongitude;
+    private double fixAccuracy;
+    private double fixSpeed;
+    private double fixBearingRadians;
+    private boolean fixHasBearing;
+    private long fixNanos;
+
+    // Propagated offset from the last fix, in meters on the local tangent plane
+    private double east;
+    private double north;
+    private long propagatedNanos;
+    private int stepsSinceFix;
+
+    private double headingRadians;
+    private boolean hasHeading;
+    private long lastStepNanos = Long.MIN_VALUE;
+    private double accelerationNoise = STATIONARY_THRESHOLD * 2;
+
+    void setStepLength(double meters) {
+        stepLengthMeters = clamp(meters, MIN_STEP_LENGTH_METERS, MAX_STEP_LENGTH_METERS);
+    }
+
+    void setMaxPropagationMillis(long millis) {
+        maxPropagationNanos = millis * 1_000_000L;
+    }
+
+    void setAccuracyGrowth(double metersPerSecond) {
+        accuracyGrowthMetersPerSecond = metersPerSecond;
+    }
+
+    double getStepLength() {
+        return stepLengthMeters;
+    }
+
+    boolean hasFix() {
+        return hasFix;
+    }
+
+    /**
+     * Corrects the propagated state with a real fix. Step length is
+     * re-estimated from the distance walked since the previous fix.
+     */
+    void onFix(double latitude, double longitude, double accuracy, double speed,
+               double bearingDegrees, boolean hasBearing, long elapsedRealtimeNanos) {
+        if (hasFix && stepsSinceFix >= MIN_STEPS_FOR_CALIBRATION) {
+            double walked = distanceMeters(fixLatitude, fixLongitude, latitude, longitude);
+            double measured = walked / stepsSinceFix;
+            // Move halfway towards the measured value to damp GNSS noise
+            setStepLength((stepLengthMeters + measured) / 2);
+        }
+
+        hasFix = true;
+        fixLatitude = latitude;
+        fixLongitude = longitude;
+        fixAccuracy = accuracy;
+        fixSpeed = speed;
+        fixBearingRadians = Math.toRadians(bearingDegrees);
+        fixHasBearing = hasBearing;
+        fixNanos = elapsedRealtimeNanos;
+
+        east = 0;
+        north = 0;
+        propagatedNanos = elapsedRealtimeNanos;
+        stepsSinceFix = 0;
+    }
+
+    /** Updates the device heading, in radians clockwise from north. */
+    void onHeading(double azimuthRadians, long elapsedRealtimeNanos) {
+        propagate(elapsedRealtimeNanos);
+        headingRadians = azimuthRadians;
+        hasHeading = true;
+    }
+
+    /** Records a single detected step. */
+    void onStep(long elapsedRealtimeNanos) {
+        propagate(elapsedRealtimeNanos);
+        lastStepNanos = elapsedRealtimeNanos;
+        if (!hasFix) {
+            return;
+        }
+        double heading = deviceHeading();
+        east += stepLengthMeters * Math.sin(heading);
+        north += stepLengthMeters * Math.cos(heading);
+        stepsSinceFix++;
+    }
+
+    /** Feeds a raw accelerometer sample, used to detect when the device is at rest. */
+    void onAcceleration(double x, double y, double z, long elapsedRealtimeNanos) {
+        propagate(elapsedRealtimeNanos);
+        double deviation = Math.abs(Math.sqrt(x * x + y * y + z * z) - STANDARD_GRAVITY);
+        accelerationNoise += ACCELERATION_SMOOTHING * (deviation - accelerationNoise);
+    }
+
+    /**
+     * Fills {@code out} with the position at {@code elapsedRealtimeNanos}.
+     *
+     * @return false if there is no fix yet or the last one is too old to
+     * propagate from.
+     */
+    boolean estimate(long elapsedRealtimeNanos, Estimate out) {
+        if (!hasFix) {
+            return false;
+        }
+        long sinceFix = elapsedRealtimeNanos - fixNanos;
+        if (sinceFix < 0 || sinceFix > maxPropagationNanos) {
+            return false;
+        }
+        propagate(elapsedRealtimeNanos);
+
+        double seconds = sinceFix / 1e9;
+        double latitudeRadians = Math.toRadians(fixLatitude);
+        out.latitude = fixLatitude + Math.toDegrees(north / EARTH_RADIUS_METERS);
+        out.longitude = fixLongitude
+                + Math.toDegrees(east / (EARTH_RADIUS_METERS * Math.cos(latitudeRadians)));
+        out.accuracy = fixAccuracy + accuracyGrowthMetersPerSecond * seconds;
+        out.speed = isWalking(elapsedRealtimeNanos) || isStationary() ? 0 : fixSpeed;
+        double heading = isWalking(elapsedRealtimeNanos) ? deviceHeading() : travelHeading();
+        out.heading = (Math.toDegrees(heading) + 360) % 360;
+        // Decays linearly to zero at the propagation horizon, scaled by how
+        // trustworthy the fix we started from was
+        out.confidence = (1 - (double) sinceFix / maxPropagationNanos)
+                * (out.accuracy > 0 ? fixAccuracy / out.accuracy : 1);
+        out.elapsedRealtimeNanos = elapsedRealtimeNanos;
+        out.sinceFixNanos = sinceFix;
+        return true;
+    }
+
+    void reset() {
+        hasFix = false;
+        hasHeading = false;
+        stepsSinceFix = 0;
+        lastStepNanos = Long.MIN_VALUE;
+        accelerationNoise = STATIONARY_THRESHOLD * 2;
+    }
+
+    /**
+     * Integrates constant-velocity motion up to {@code nanos}. Walking is
+     * integrated per step in {@link #onStep}, so this only advances vehicles.
+     */
+    private void propagate(long nanos) {
+        if (!hasFix || nanos <= propagatedNanos) {
+            return;
+        }
+        if (!isWalking(nanos) && !isStationary()) {
+            double seconds = (nanos - propagatedNanos) / 1e9;
+            double heading = travelHeading();
+            east += fixSpeed * seconds * Math.sin(heading);
+            north += fixSpeed * seconds * Math.cos(heading);
+        }
+        propagatedNanos = nanos;
+    }
+
+    private boolean isWalking(long nanos) {
+        return lastStepNanos != Long.MIN_VALUE && nanos - lastStepNanos <= STEP_TIMEOUT_NANOS;
+    }
+
+    private boolean isStationary() {
+        return accelerationNoise < STATIONARY_THRESHOLD;
+    }
+
+    /** Where the phone points; a walking user generally holds it facing forward. */
+    private double deviceHeading() {
+        if (hasHeading) {
+            return headingRadians;
+        }
+        return fixHasBearing ? fixBearingRadians : 0;
+    }
+
+    /** Course over ground; in a vehicle the phone orientation says little about it. */
+    private double travelHeading() {
+        if (fixHasBearing) {
+            return fixBearingRadians;
+        }
+        return hasHeading ? headingRadians : 0;
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /** Equirectangular distance, accurate enough over the span of a few fixes. */
+    static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        double x = Math.toRadians(lon2 - lon1) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        double y = Math.toRadians(lat2 - lat1);
+        return Math.sqrt(x * x + y * y) * EARTH_RADIUS_METERS;
+    }
+}
@@ -0,0 +1,131 @@
+package com.lyokone.location;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Feeds rotation vector, accelerometer and step detector samples into a
+ * {@link DeadReckoning} and emits its estimates at a fixed rate between real
+ * fixes.
+ */
+final class DeadReckoningProvider implements SensorEventListener {
+    private static final String TAG = "DeadReckoningProvider";
+
+    interface Listener {
+        void onEstimate(DeadReckoning.Estimate estimate);
+    }
+
+    private final SensorManager sensorManager;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final DeadReckoning deadReckoning = new DeadReckoning();
+    private final DeadReckoning.Estimate estimate = new DeadReckoning.Estimate();
+    private final float[] rotationMatrix = new float[9];
+    private final float[] orientation = new float[3];
+    private final Listener listener;
+
+    private long periodMillis = 200;
+    private long lastFixNanos;
+    private boolean running;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) {
+                return;
+            }
+            long now = SystemClock.elapsedRealtimeNanos();
+            // A real fix was delivered moments ago, no need to interpolate
+            if (now - lastFixNanos >= periodMillis * 500_000L && deadReckoning.estimate(now, estimate)) {
+                listener.onEstimate(estimate);
+            }
+            handler.postDelayed(this, periodMillis);
+        }
+    };
+
+    DeadReckoningProvider(Context context, Listener listener) {
+        this.sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        this.listener = listener;
+    }
+
+    void configure(int rateHz, Double stepLengthMeters, Long maxPropagationMillis) {
+        periodMillis = 1000L / Math.max(1, Math.min(rateHz, 50));
+        if (stepLengthMeters != null) {
+            deadReckoning.setStepLength(stepLengthMeters);
+        }
+        if (maxPropagationMillis != null) {
+            deadReckoning.setMaxPropagationMillis(maxPropagationMillis);
+        }
+    }
+
+    void onFix(Location location) {
+        lastFixNanos = location.getElapsedRealtimeNanos();
+        deadReckoning.onFix(location.getLatitude(), location.getLongitude(), location.getAccuracy(),
+                location.getSpeed(), location.getBearing(), location.hasBearing(), lastFixNanos);
+    }
+
+    void start() {
+        if (running) {
+            return;
+        }
+        if (sensorManager == null) {
+            Log.w(TAG, "No sensor manager available, dead reckoning disabled.");
+            return;
+        }
+        running = true;
+        register(Sensor.TYPE_ROTATION_VECTOR, SensorManager.SENSOR_DELAY_GAME);
+        register(Sensor.TYPE_ACCELEROMETER, SensorManager.SENSOR_DELAY_GAME);
+        register(Sensor.TYPE_STEP_DETECTOR, SensorManager.SENSOR_DELAY_FASTEST);
+        handler.postDelayed(tick, periodMillis);
+    }
+
+    void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        handler.removeCallbacks(tick);
+        sensorManager.unregisterListener(this);
+        deadReckoning.reset();
+    }
+
+    private void register(int type, int delay) {
+        Sensor sensor = sensorManager.getDefaultSensor(type);
+        if (sensor == null) {
+            Log.d(TAG, "Sensor type " + type + " not available.");
+            return;
+        }
+        sensorManager.registerListener(this, sensor, delay);
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        switch (event.sensor.getType()) {
+            case Sensor.TYPE_ROTATION_VECTOR:
+                SensorManager.getRotationMatrixFromVector(rotationMatrix, event.values);
+                SensorManager.getOrientation(rotationMatrix, orientation);
+                deadReckoning.onHeading(orientation[0], event.timestamp);
+                break;
+            case Sensor.TYPE_ACCELEROMETER:
+                deadReckoning.onAcceleration(event.values[0], event.values[1], event.values[2],
+                        event.timestamp);
+                break;
+            case Sensor.TYPE_STEP_DETECTOR:
+                deadReckoning.onStep(event.timestamp);
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+}
@@ -0,0 +1,217 @@
+package com.lyokone.location;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Alternates high accuracy bursts with cheaper rest windows to keep the
+ * location session within an energy budget, and accounts the time spent at
+ * each priority.
+ * <p>
+ * A cycle lasts the maximum acceptable staleness: a burst of at least
+ * {@code minBurstMillis}, long enough for a fix, followed by a rest at the
+ * rest priority. The burst takes the budgeted share of the cycle. When even
+ * the shortest burst exceeds the budget, freshness wins and the scheduler
+ * reports being over budget. A burst ends early once a fix within the target
+ * accuracy arrives.
+ * <p>
+ * Priorities are indices into the cost model, in milliamps. It only depends
+ * on a {@link Clock}, so it runs on the JVM with a simulated one. It is not
+ * thread safe.
+ */
+final class DutyCycleScheduler {
+    interface Clock {
+        long elapsedRealtimeMillis();
+    }
+
+    static final int HIGH_ACCURACY = 0;
+    static final int BALANCED = 1;
+    static final int LOW_POWER = 2;
+    static final int NO_POWER = 3;
+    static final int PRIORITY_COUNT = 4;
+
+    private static final String[] PRIORITY_NAMES = {"high", "balanced", "low", "none"};
+
+    private final Clock clock;
+    // Rough figures for a phone, GNSS dominating the high accuracy cost
+    private final double[] costMilliamps = {30, 8, 2, 0};
+    private final long[] onTimeMillis = new long[PRIORITY_COUNT];
+
+    private double targetDutyCycle = 1;
+    private long burstMillis;
+    private long restMillis;
+    private int restPriority = LOW_POWER;
+    private float targetAccuracy;
+    private boolean overBudget;
+
+    private boolean running;
+    private boolean inBurst;
+    private long phaseEndMillis;
+    private long accountedUntilMillis;
+
+    DutyCycleScheduler(Clock clock) {
+        this.clock = clock;
+    }
+
+    void setCost(int priority, double milliamps) {
+        costMilliamps[priority] = milliamps;
+    }
+
+    /** The duty cycle that spends {@code milliampHoursPerHour} on average. */
+    double dutyCycleForBudget(double milliampHoursPerHour, int restPriority) {
+        double range = costMilliamps[HIGH_ACCURACY] - costMilliamps[restPriority];
+        if (range <= 0) {
+            return 1;
+        }
+        return Math.max(0, Math.min(1, (milliampHoursPerHour - costMilliamps[restPriority]) / range));
+    }
+
+    void configure(double dutyCycle, long minBurstMillis, long maxStalenessMillis, int restPriority,
+                   float targetAccuracy) {
+        this.targetDutyCycle = Math.max(0, Math.min(1, dutyCycle));
+        this.restPriority = restPriority;
+        this.targetAccuracy = targetAccuracy;
+
+        long cycleMillis = Math.max(minBurstMillis, maxStalenessMillis);
+        long budgeted = (long) (targetDutyCycle * cycleMillis);
+        overBudget = budgeted < minBurstMillis;
+        burstMillis = Math.max(minBurstMillis, budgeted);
+        restMillis = cycleMillis - burstMillis;
+        if (running) {
+            long now = clock.elapsedRealtimeMillis();
+            account(now);
+            startBurst(now);
+        }
+    }
+
+    /** Starts or resumes cycling with a burst, returning the priority to request. */
+    int start() {
+        long now = clock.elapsedRealtimeMillis();
+        if (running) {
+            account(now);
+        }
+        running = true;
+        accountedUntilMillis = now;
+        startBurst(now);
+        return getPriority();
+    }
+
+    /** Stops accounting until the next {@link #start}, e.g. while no updates are requested. */
+    void pause() {
+        if (running) {
+            account(clock.elapsedRealtimeMillis());
+            running = false;
+        }
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    int getPriority() {
+        return inBurst ? HIGH_ACCURACY : restPriority;
+    }
+
+    /** Elapsed realtime at which {@link #advance} should be called. */
+    long getNextTransitionMillis() {
+        return phaseEndMillis;
+    }
+
+    /**
+     * Moves to the next phase if the current one is over.
+     *
+     * @return whether the priority changed
+     */
+    boolean advance() {
+        long now = clock.elapsedRealtimeMillis();
+        if (!running || now < phaseEndMillis) {
+            return false;
+        }
+        int previous = getPriority();
+        account(now);
+        if (inBurst && restMillis > 0) {
+            inBurst = false;
+            phaseEndMillis = now + restMillis;
+        } else {
+            startBurst(now);
+        }
+        return getPriority() != previous;
+    }
+
+    /**
+     * The accuracy a fix needs to end the current burst early, or 0 if no
+     * fix can.
+     */
+    float getBurstTargetAccuracy() {
+        return running && inBurst && restMillis > 0 ? targetAccuracy : 0;
+    }
+
+    /**
+     * Ends the burst early on an accurate enough fix.
+     *
+     * @return whether {@link #advance} is due now
+     */
+    boolean onFix(float accuracy) {
+        float target = getBurstTargetAccuracy();
+        return target > 0 && accuracy <= target && endBurst();
+    }
+
+    /**
+     * Ends the current burst now, e.g. once a fix checked against
+     * {@link #getBurstTargetAccuracy} elsewhere arrived.
+     *
+     * @return whether {@link #advance} is due now
+     */
+    boolean endBurst() {
+        if (!running || !inBurst || restMillis == 0) {
+            return false;
+        }
+        phaseEndMillis = clock.elapsedRealtimeMillis();
+        return true;
+    }
+
+    long getOnTimeMillis(int priority) {
+        if (running) {
+            account(clock.elapsedRealtimeMillis());
+        }
+        return onTimeMillis[priority];
+    }
+
+    double getEstimatedMilliampHours() {
+        double total = 0;
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            total += getOnTimeMillis(i) / 3_600_000.0 * costMilliamps[i];
+        }
+        return total;
+    }
+
+    Map<String, Object> getAccounting() {
+        HashMap<String, Object> accounting = new HashMap<>();
+        HashMap<String, Object> onTime = new HashMap<>();
+        long total = 0;
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            long millis = getOnTimeMillis(i);
+            onTime.put(PRIORITY_NAMES[i], (double) millis);
+            total += millis;
+        }
+        accounting.put("onTime", onTime);
+        accounting.put("estimatedMah", getEstimatedMilliampHours());
+        accounting.put("dutyCycle", total > 0 ? (double) onTimeMillis[HIGH_ACCURACY] / total : 0.0);
+        accounting.put("targetDutyCycle", targetDutyCycle);
+        accounting.put("burstDuration", (double) burstMillis);
+        accounting.put("restDuration", (double) restMillis);
+        accounting.put("overBudget", overBudget);
+        accounting.put("phase", running ? (inBurst ? "burst" : "rest") : "paused");
+        return accounting;
+    }
+
+    private void startBurst(long now) {
+        inBurst = true;
+        phaseEndMillis = now + burstMillis;
+    }
+
+    private void account(long now) {
+        onTimeMillis[getPriority()] += now - accountedUntilMillis;
+        accountedUntilMillis = now;
+    }
+}
@@ -0,0 +1,98 @@
+package com.lyokone.location;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A growable batch of fixes in primitive arrays, with a compact binary
+ * encoding.
+ * <p>
+ * The encoding starts with the ASCII bytes {@code LOC} and a version byte,
+ * followed by the fix count as a varint. Each fix is then written as seven
+ * zigzag varints holding the difference from the previous fix of: time (ms),
+ * latitude and longitude (1e-7 degrees), altitude, accuracy (cm), speed
+ * (cm/s) and bearing (1/100 degree). Consecutive fixes differ little, so most
+ * values take one or two bytes.
+ * <p>
+ * Version {@link #STREAM_VERSION} omits the count, fixes follow until the end
+ * of the file. It is used for recordings that grow while being written.
+ */
+final class FixBatch {
+    static final int FIELDS = 7;
+    static final byte[] MAGIC = {'L', 'O', 'C'};
+    private static final byte VERSION = 1;
+    static final byte STREAM_VERSION = 2;
+
+    private long[] values;
+    private int size;
+
+    FixBatch(int initialCapacity) {
+        values = new long[Math.max(1, initialCapacity) * FIELDS];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    void add(long timeMillis, double latitude, double longitude, double altitude, double accuracy,
+             double speed, double bearing) {
+        if ((size + 1) * FIELDS > values.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        quantize(values, size * FIELDS, timeMillis, latitude, longitude, altitude, accuracy, speed, bearing);
+        size++;
+    }
+
+    /** Copies the quantized fields of fix {@code index} into {@code out}. */
+    void get(int index, long[] out) {
+        System.arraycopy(values, index * FIELDS, out, 0, FIELDS);
+    }
+
+    /** Converts a fix to the integer units used by the encoding. */
+    static void quantize(long[] out, int offset, long timeMillis, double latitude, double longitude,
+                         double altitude, double accuracy, double speed, double bearing) {
+        out[offset] = timeMillis;
+        out[offset + 1] = Math.round(latitude * 1e7);
+        out[offset + 2] = Math.round(longitude * 1e7);
+        out[offset + 3] = Math.round(altitude * 100);
+        out[offset + 4] = Math.round(accuracy * 100);
+        out[offset + 5] = Math.round(speed * 100);
+        out[offset + 6] = Math.round(bearing * 100);
+    }
+
+    void encode(OutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+        writeVarint(out, size);
+        long[] previous = new long[FIELDS];
+        for (int i = 0; i < size; i++) {
+            writeDeltas(out, values, i * FIELDS, previous);
+        }
+    }
+
+    /** Writes one quantized fix as deltas from {@code previous}, then updates it. */
+    static void writeDeltas(OutputStream out, long[] fix, int offset, long[] previous) throws IOException {
+        for (int field = 0; field < FIELDS; field++) {
+            long value = fix[offset + field];
+            writeVarint(out, zigzag(value - previous[field]));
+            previous[field] = value;
+        }
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
@@ -1,6 +1,13 @@
 package com.lyokone.location;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.jetbrains.annotations.NotNull;
 
@@ -9,6 +16,7 @@ import com.google.android.gms.location.LocationCallback;
 import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationResult;
 import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.location.Priority;
 
 import android.Manifest;
 import android.content.Context;
@@ -17,8 +25,9 @@ import android.location.Location;
 import android.location.LocationManager;
 import android.location.OnNmeaMessageListener;
 import android.os.Build;
-import android.os.Bundle;
+import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.SparseArray;
 
 import androidx.annotation.Nullable;
@@ -34,14 +43,43 @@ public class FlutterLocation implements PluginRegistry.RequestPermissionsResultL
     private static final int REQUEST_PERMISSIONS_REQUEST_CODE = 34;
 
     private final Context context;
-    protected FusedLocationProviderClient mFusedLocationClient;
-    private LocationRequest mLocationRequest;
-    public LocationCallback mLocationCallback;
+    private FusedLocationProviderClient mFusedLocationClient;
+    private volatile LocationRequest mLocationRequest;
+    private volatile LocationCallback mLocationCallback;
+
+    // Fixes are handled without locks; only registering and removing the
+    // updates is serialized, so a stop cannot undo a concurrent start
+    private final Object updatesLock = new Object();
+    private final SessionController session = new SessionController(updatesLock,
+            new SessionController.Updates() {
+                @Override
+                public void register() {
+                    registerUpdates();
+                }
+
+                @Override
+                public void unregister() {
+                    unregisterUpdates();
+                }
+
+                @Override
+                public boolean isNeeded() {
+                    return isStreaming() || !locationResults.isEmpty();
+                }
+            });
 
     @androidx.annotation.RequiresApi(Build.VERSION_CODES.N)
     private OnNmeaMessageListener mMessageListener;
 
-    private Double mLastMslAltitude;
+    private volatile Double mLastMslAltitude;
+
+    // Pipeline stages are configured on the main looper, which also delivers the
+    // fixes and runs their timers. Each is published as an immutable holder, or a
+    // provider, through a volatile field for the checks made on other threads.
+
+    // Interpolates positions between fixes when enabled through setDeadReckoning
+    @Nullable
+    private volatile DeadReckoningProvider deadReckoning;
 
     // Parameters of the request
     private long updateIntervalMilliseconds = 5000;
@@ -49,13 +87,132 @@ public class FlutterLocation implements PluginRegistry.RequestPermissionsResultL
     private Integer locationAccuracy = LocationRequest.PRIORITY_HIGH_ACCURACY;
     private float distanceFilter = 0f;
 
-    public EventSink events;
+    /** Field mask of a subscription that follows the one set through {@link #setFieldMask}. */
+    static final int DEFAULT_FIELD_MASK = -1;
+
+    /** A location stream listener, from any attached engine. */
+    private static final class Subscription {
+        final EventSink sink;
+        @Nullable
+        final LocationSerializer serializer;
+
+        Subscription(EventSink sink, @Nullable LocationSerializer serializer) {
+            this.sink = sink;
+            this.serializer = serializer;
+        }
+    }
+
+    // Location stream listeners of every engine, updates run while there is at least one
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    // Serializers used and maps serialized for the current fix or estimate, only touched
+    // on the main looper, which delivers them
+    private final ArrayList<LocationSerializer> fixSerializers = new ArrayList<>();
+    private final ArrayList<HashMap<String, Object>> serializedFixes = new ArrayList<>();
+
+    // One serializer per field mask, shared so each fix is serialized once per mask.
+    // One-shot requests always get every field.
+    private final SparseArray<LocationSerializer> serializers = new SparseArray<>();
+    private final LocationSerializer fullSerializer = serializerFor(LocationSerializer.ALL_FIELDS);
+    private volatile LocationSerializer streamSerializer = fullSerializer;
+
+    // Receives events produced natively from the fixes, see PipelineStreamHandlerImpl
+    private final CopyOnWriteArrayList<EventSink> pipelineSinks = new CopyOnWriteArrayList<>();
+
+    private static final class Segmentation {
+        final StayPointSegmenter segmenter;
+        final boolean suppressFixesAtStay;
+
+        Segmentation(StayPointSegmenter segmenter, boolean suppressFixesAtStay) {
+            this.segmenter = segmenter;
+            this.suppressFixesAtStay = suppressFixesAtStay;
+        }
+    }
+
+    @Nullable
+    private volatile Segmentation segmentation;
+
+    private static final class Aggregation {
+        final CellAggregator aggregator;
+        // Cells reported since the last batch, only touched on the main looper
+        final CellBatch cells;
+        final long flushMilliseconds;
+        final boolean suppressFixes;
+
+        Aggregation(CellAggregator aggregator, CellBatch cells, long flushMilliseconds, boolean suppressFixes) {
+            this.aggregator = aggregator;
+            this.cells = cells;
+            this.flushMilliseconds = flushMilliseconds;
+            this.suppressFixes = suppressFixes;
+        }
+    }
+
+    @Nullable
+    private volatile Aggregation aggregation;
+
+    // Satellite status summaries, see setGnssStatus
+    private static final class GnssStage {
+        final GnssStatusProvider provider;
+        final boolean attachToFixes;
+        final long eventIntervalMilliseconds;
+
+        GnssStage(GnssStatusProvider provider, boolean attachToFixes, long eventIntervalMilliseconds) {
+            this.provider = provider;
+            this.attachToFixes = attachToFixes;
+            this.eventIntervalMilliseconds = eventIntervalMilliseconds;
+        }
+    }
+
+    // Written under updatesLock, which starts and stops the provider with the updates
+    @Nullable
+    private volatile GnssStage gnss;
+    // Only touched on the main looper. The summary is built from the latest status
+    // for the first fix that needs it.
+    private long lastGnssEventNanos;
+    @Nullable
+    private HashMap<String, Object> gnssSummary;
+
+    // Snaps fixes to a local road graph, see setMapMatching. Swapped on the main
+    // looper once loaded; the generation, also main looper only, drops stale loads.
+    @Nullable
+    private volatile MapMatcher mapMatcher;
+    private int mapMatchingGeneration;
+
+    // Alternates high accuracy bursts with cheaper windows, see setEnergyBudget.
+    // Guarded by updatesLock.
+    @Nullable
+    private DutyCycleScheduler dutyCycle;
+    // The accuracy that ends the current burst, 0 if none does. Published under
+    // updatesLock for the fix path, which takes no lock.
+    private volatile float burstTargetAccuracy;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /** Receives every fix natively, whether or not an engine is listening. */
+    public interface FixListener {
+        void onFix(Location location);
+    }
+
+    private final CopyOnWriteArrayList<FixListener> fixListeners = new CopyOnWriteArrayList<>();
+
+    /** Notified whenever the state worth restoring after process death changes. */
+    public interface SessionListener {
+        void onSessionChanged();
+    }
+
+    @Nullable
+    private SessionListener sessionListener;
+
+    // Fixes received while no engine listens, delivered to the next location sink.
+    // Guarded by itself.
+    private final ArrayDeque<HashMap<String, Object>> bufferedFixes = new ArrayDeque<>();
+    private volatile int bufferCapacity;
 
     // Store result until a permission check is resolved
-    public Result result;
+    private final AtomicReference<Result> permissionResult = new AtomicReference<>();
 
-    // Store result until a location is getting resolved
-    public Result getLocationResult;
+    // Store results until a location is getting resolved. Each is polled,
+    // so a racing fix and error cannot both answer it.
+    private final ConcurrentLinkedQueue<Result> locationResults = new ConcurrentLinkedQueue<>();
 
     private final LocationManager locationManager;
 
@@ -77,9 +234,37 @@ public class FlutterLocation implements PluginRegistry.RequestPermissionsResultL
     }
 
     private void initializeLocationServices() {
-        mFusedLocationClient = LocationServices.getFusedLocationProviderClient(context);
-        createLocationCallback();
-        createLocationRequest();
+        // The fused client is only created once location is actually requested
+        mLocationCallback = newLocationCallback();
+        synchronized (updatesLock) {
+            createLocationRequest();
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            mMessageListener = (message, timestamp) -> {
+                if (message.startsWith("$")) {
+                    String[] tokens = message.split(",");
+                    String type = tokens[0];
+
+                    // Parse altitude above sea level, Detailed description of NMEA string here
+                    // http://aprs.gids.nl/nmea/#gga
+                    if (type.startsWith("$GPGGA") && tokens.length > 9) {
+                        if (!tokens[9].isEmpty()) {
+                            mLastMslAltitude = Double.parseDouble(tokens[9]);
+                        }
+                    }
+                }
+            };
+        }
+    }
+
+    // Stages are only touched on the main looper
+    private void runOnMain(Runnable runnable) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            runnable.run();
+        } else {
+            handler.post(runnable);
+        }
     }
 
     @Override
@@ -93,27 +278,18 @@ public class FlutterLocation implements PluginRegistry.RequestPermissionsResultL
                 && permissions[0].equals(Manifest.permission.ACCESS_FINE_LOCATION)) {
             if (grantResults[0] == PackageManager.PERMISSION_GRANTED) {
                 // Checks if this permission was automatically triggered by a location request
-                if (getLocationResult != null || events != null) {
+                if (!locationResults.isEmpty() || isStreaming()) {
                     startRequestingLocation();
                 }
-                if (result != null) {
-                    result.success(1);
-                    result = null;
-                }
+                resolvePermission(1);
             } else {
                 if (!shouldShowRequestPermissionRationale()) {
                     sendError("PERMISSION_DENIED_NEVER_ASK",
                             "Location permission denied forever - please open app settings", null);
-                    if (result != null) {
-                        result.success(2);
-                        result = null;
-                    }
+                    resolvePermission(2);
                 } else {
                     sendError("PERMISSION_DENIED", "Location permission denied", null);
-                    if (result != null) {
-                        result.success(0);
-                        result = null;
-                    }
+                    resolvePermission(0);
                 }
             }
             return true;
@@ -123,133 +299,821 @@ public class FlutterLocation implements PluginRegistry.RequestPermissionsResultL
 
     public void changeSettings(Integer newLocationAccuracy, Long updateIntervalMilliseconds,
                                Long fastestUpdateIntervalMilliseconds, Float distanceFilter) {
-        this.locationAccuracy = newLocationAccuracy;
-        this.updateIntervalMilliseconds = updateIntervalMilliseconds;
-        this.fastestUpdateIntervalMilliseconds = fastestUpdateIntervalMilliseconds;
-        this.distanceFilter = distanceFilter;
-
-        createLocationCallback();
-        createLocationRequest();
+        // The new callback has to be registered again
+        session.restart(() -> {
+            this.locationAccuracy = newLocationAccuracy;
+            this.updateIntervalMilliseconds = updateIntervalMilliseconds;
+            this.fastestUpdateIntervalMilliseconds = fastestUpdateIntervalMilliseconds;
+            this.distanceFilter = distanceFilter;
+            mLocationCallback = newLocationCallback();
+            createLocationRequest();
+        });
         startRequestingLocation();
+        notifySessionChanged();
     }
 
-    private void sendError(String errorCode, String errorMessage, Object errorDetails) {
-        if (getLocationResult != null) {
-            getLocationResult.error(errorCode, errorMessage, errorDetails);
-            getLocationResult = null;
+    public int getLocationPriority() {
+        return locationAccuracy;
+    }
+
+    public long getUpdateIntervalMilliseconds() {
+        return updateIntervalMilliseconds;
+    }
+
+    public long getFastestUpdateIntervalMilliseconds() {
+        return fastestUpdateIntervalMilliseconds;
+    }
+
+    public float getDistanceFilter() {
+        return distanceFilter;
+    }
+
+    public void setSessionListener(@Nullable SessionListener sessionListener) {
+        this.sessionListener = sessionListener;
+    }
+
+    private void notifySessionChanged() {
+        if (sessionListener != null) {
+            sessionListener.onSessionChanged();
+        }
+    }
+
+    /**
+     * Keeps location updates running without any listener and holds up to
+     * {@code capacity} fixes, the oldest being dropped first, until a location
+     * sink is added. Zero turns buffering off and drops the buffered fixes.
+     */
+    public void setOfflineBuffer(int capacity) {
+        synchronized (bufferedFixes) {
+            bufferCapacity = capacity;
+            while (bufferedFixes.size() > capacity) {
+                bufferedFixes.pollFirst();
+            }
         }
-        if (events != null) {
-            events.error(errorCode, errorMessage, errorDetails);
-            events = null;
+        if (capacity == 0) {
+            stopRequestingLocation();
         }
     }
 
-    private void createLocationCallback() {
-        if (mLocationCallback != null) {
-            mFusedLocationClient.removeLocationUpdates(mLocationCallback);
-            mLocationCallback = null;
+    /**
+     * Stops everything for good, when the owner goes away: buffering, native
+     * consumers, pipeline stages and location updates. Pending results and
+     * subscriptions fail.
+     */
+    public void dispose() {
+        synchronized (bufferedFixes) {
+            bufferCapacity = 0;
+            bufferedFixes.clear();
         }
-        mLocationCallback = new LocationCallback() {
-            @Override
-            public void onLocationResult(LocationResult locationResult) {
-                super.onLocationResult(locationResult);
-                Location location = locationResult.getLastLocation();
-                HashMap<String, Object> loc = new HashMap<>();
-                loc.put("latitude", location.getLatitude());
-                loc.put("longitude", location.getLongitude());
-                loc.put("accuracy", (double) location.getAccuracy());
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                    loc.put("verticalAccuracy", (double) location.getVerticalAccuracyMeters());
-                    loc.put("headingAccuracy", (double) location.getBearingAccuracyDegrees());
-                }
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-                    loc.put("elapsedRealtimeUncertaintyNanos", location.getElapsedRealtimeUncertaintyNanos());
+        fixListeners.clear();
+        pipelineSinks.clear();
+        SparseSampler.setListener(null);
+        handler.removeCallbacks(flushCells);
+        setDeadReckoning(false, 0, null, null);
+        setGnssStatus(false, false, 0);
+        synchronized (updatesLock) {
+            handler.removeCallbacks(dutyCycleTick);
+            dutyCycle = null;
+            burstTargetAccuracy = 0;
+        }
+        sendError("SERVICE_STOPPED", "The location service was stopped", null);
+        stopRequestingLocation();
+    }
+
+    public boolean isBufferingOffline() {
+        return bufferCapacity > 0;
+    }
+
+    public boolean hasLocationSinks() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * Restricts the fields sent to subscriptions that did not pick their own
+     * to {@code mask}, a combination of the {@link LocationSerializer} field
+     * bits.
+     */
+    public void setFieldMask(int mask) {
+        streamSerializer = serializerFor(mask);
+    }
+
+    private LocationSerializer serializerFor(int mask) {
+        LocationSerializer serializer = serializers.get(mask);
+        if (serializer == null) {
+            serializer = LocationSerializer.create(mask, Build.VERSION.SDK_INT);
+            serializers.put(mask, serializer);
+        }
+        return serializer;
+    }
+
+    /**
+     * Adds a location stream listener. Each fix is serialized once per field
+     * mask and shared between the listeners using it.
+     *
+     * @param fieldMask the fields to send, or {@link #DEFAULT_FIELD_MASK}
+     */
+    public void addLocationSink(EventSink sink, int fieldMask) {
+        removeLocationSink(sink);
+        subscriptions.add(new Subscription(sink,
+                fieldMask == DEFAULT_FIELD_MASK ? null : serializerFor(fieldMask)));
+
+        // Buffered fixes always carry every field, like one-shot results. Once an
+        // engine has taken over, the session ends with its last listener again.
+        synchronized (bufferedFixes) {
+            while (!bufferedFixes.isEmpty()) {
+                sink.success(bufferedFixes.pollFirst());
+            }
+            bufferCapacity = 0;
+        }
+        notifySessionChanged();
+    }
+
+    public void removeLocationSink(EventSink sink) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.sink == sink) {
+                subscriptions.remove(subscription);
+                notifySessionChanged();
+                return;
+            }
+        }
+    }
+
+    public void addPipelineSink(EventSink sink) {
+        Aggregation aggregation = this.aggregation;
+        if (pipelineSinks.addIfAbsent(sink) && pipelineSinks.size() == 1 && aggregation != null) {
+            handler.removeCallbacks(flushCells);
+            handler.postDelayed(flushCells, aggregation.flushMilliseconds);
+        }
+        SparseSampler.setListener(sampleListener);
+    }
+
+    public void removePipelineSink(EventSink sink) {
+        pipelineSinks.remove(sink);
+        if (pipelineSinks.isEmpty()) {
+            handler.removeCallbacks(flushCells);
+            SparseSampler.setListener(null);
+        }
+    }
+
+    // Scheduled samples, delivered through the pipeline sinks while there are any
+    private final SparseSampler.SampleListener sampleListener = (scheduleId, location, accuracyMet) -> {
+        HashMap<String, Object> event = new HashMap<>();
+        event.put("type", "sample");
+        event.put("scheduleId", scheduleId);
+        event.put("accuracyMet", accuracyMet);
+        event.put("location", fullSerializer.serialize(location, null));
+        sendPipelineEvent(event);
+    };
+
+    /** Resolves {@code result} with the next fix. */
+    public void addLocationResult(Result result) {
+        locationResults.add(result);
+        session.addOneShot();
+    }
+
+    /** The current {@link SessionState}, for diagnostics. */
+    public String getSessionState() {
+        return SessionState.name(session.get());
+    }
+
+    /**
+     * Enables or disables sensor based dead reckoning. While enabled and
+     * streaming, estimated positions are emitted at {@code rateHz} between
+     * real fixes, tagged with the {@code dead_reckoning} provider and a
+     * confidence in [0, 1]. Estimates follow the field mask of each
+     * subscription and are withheld whenever raw fixes are.
+     * <p>
+     * From Android 10 on the step detector only reports steps with the
+     * {@code ACTIVITY_RECOGNITION} permission, see
+     * {@link #checkActivityRecognitionPermission}.
+     */
+    public void setDeadReckoning(boolean enabled, int rateHz, @Nullable Double stepLengthMeters,
+                                 @Nullable Long maxPropagationMillis) {
+        runOnMain(() -> {
+            DeadReckoningProvider provider = deadReckoning;
+            if (!enabled) {
+                if (provider != null) {
+                    provider.stop();
+                    deadReckoning = null;
                 }
+                return;
+            }
+            if (provider == null) {
+                provider = new DeadReckoningProvider(context, this::sendEstimate);
+            }
+            provider.configure(rateHz, stepLengthMeters, maxPropagationMillis);
+            deadReckoning = provider;
+            if (!subscriptions.isEmpty()) {
+                provider.start();
+            }
+        });
+    }
 
-                loc.put("provider", location.getProvider());
-                final Bundle extras = location.getExtras();
-                if (extras != null) {
-                    loc.put("satelliteNumber", location.getExtras().getInt("satellites"));
+    /**
+     * Enables or disables stay point and trip segmentation. Trip and stop
+     * events are sent through the pipeline sinks; when
+     * {@code suppressFixesAtStay} is set, raw fixes are not streamed while the
+     * device sits at a stay point.
+     */
+    public void setSegmentation(boolean enabled, double distanceMeters, long durationMillis,
+                                boolean suppressFixesAtStay) {
+        runOnMain(() -> {
+            if (!enabled) {
+                segmentation = null;
+                return;
+            }
+            Segmentation current = segmentation;
+            StayPointSegmenter segmenter;
+            if (current == null) {
+                segmenter = new StayPointSegmenter(distanceMeters, durationMillis, segmentListener);
+            } else {
+                // Keeps the current trip or stay
+                segmenter = current.segmenter;
+                segmenter.configure(distanceMeters, durationMillis);
+            }
+            segmentation = new Segmentation(segmenter, suppressFixesAtStay);
+            if (!pipelineSinks.isEmpty() && checkPermissions()) {
+                startRequestingLocation();
+            }
+        });
+    }
+
+    private final StayPointSegmenter.Listener segmentListener = new StayPointSegmenter.Listener() {
+        @Override
+        public void onTripStart(long timeMillis, double latitude, double longitude) {
+            HashMap<String, Object> event = new HashMap<>();
+            event.put("type", "tripStart");
+            event.put("time", (double) timeMillis);
+            event.put("latitude", latitude);
+            event.put("longitude", longitude);
+            sendPipelineEvent(event);
+        }
+
+        @Override
+        public void onTripEnd(long startMillis, long endMillis, double distanceMeters,
+                              double latitude, double longitude) {
+            HashMap<String, Object> event = new HashMap<>();
+            event.put("type", "tripEnd");
+            event.put("startTime", (double) startMillis);
+            event.put("time", (double) endMillis);
+            event.put("distance", distanceMeters);
+            event.put("latitude", latitude);
+            event.put("longitude", longitude);
+            sendPipelineEvent(event);
+        }
+
+        @Override
+        public void onStop(StayPointSegmenter.StayPoint stayPoint) {
+            HashMap<String, Object> event = new HashMap<>();
+            event.put("type", "stop");
+            event.put("latitude", stayPoint.latitude);
+            event.put("longitude", stayPoint.longitude);
+            event.put("arrivalTime", (double) stayPoint.arrivalMillis);
+            event.put("departureTime", (double) stayPoint.departureMillis);
+            event.put("dwellTime", (double) stayPoint.dwellMillis());
+            event.put("fixCount", stayPoint.fixCount);
+            event.put("minLatitude", stayPoint.minLatitude);
+            event.put("minLongitude", stayPoint.minLongitude);
+            event.put("maxLatitude", stayPoint.maxLatitude);
+            event.put("maxLongitude", stayPoint.maxLongitude);
+            sendPipelineEvent(event);
+        }
+    };
+
+    /**
+     * Enables or disables dwell time aggregation per geohash or tile cell.
+     * Cells changed since the previous batch are sent through
+     * the pipeline sinks every {@code flushMilliseconds}, while any listens;
+     * changes made meanwhile wait for the next one, at most {@code maxCells}
+     * of them, see {@link CellBatch}. A cell reports its totals since it last
+     * entered the aggregator; one flagged {@code evicted} was dropped from it,
+     * and a later report of that cell starts over from zero. When
+     * {@code suppressFixes} is set, raw fixes are not streamed at all.
+     */
+    public void setAggregation(boolean enabled, int scheme, int precision, int maxCells,
+                               long flushMilliseconds, long maxGapMilliseconds, boolean suppressFixes) {
+        // Rejected before the current stage is touched
+        if (enabled && flushMilliseconds <= 0) {
+            throw new IllegalArgumentException("The flush interval must be positive");
+        }
+        if (enabled) {
+            CellAggregator.checkArguments(scheme, precision, maxCells);
+        }
+        runOnMain(() -> {
+            if (aggregation != null) {
+                handler.removeCallbacks(flushCells);
+                flushCells.run();
+                handler.removeCallbacks(flushCells);
+                // Cells of the old scheme nobody received go with it
+                aggregation = null;
+            }
+            if (!enabled) {
+                return;
+            }
+            CellBatch cells = new CellBatch(maxCells);
+            aggregation = new Aggregation(
+                    new CellAggregator(scheme, precision, maxCells, maxGapMilliseconds, cells),
+                    cells, flushMilliseconds, suppressFixes);
+            if (!pipelineSinks.isEmpty()) {
+                handler.postDelayed(flushCells, flushMilliseconds);
+                if (checkPermissions()) {
+                    startRequestingLocation();
                 }
+            }
+        });
+    }
 
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
-                    loc.put("elapsedRealtimeNanos", (double) location.getElapsedRealtimeNanos());
+    // Only scheduled while a pipeline sink listens, a flush clears what it reports
+    private final Runnable flushCells = new Runnable() {
+        @Override
+        public void run() {
+            Aggregation aggregation = FlutterLocation.this.aggregation;
+            if (aggregation == null || pipelineSinks.isEmpty()) {
+                return;
+            }
+            aggregation.aggregator.flush();
+            if (aggregation.cells.size() > 0) {
+                HashMap<String, Object> event = new HashMap<>();
+                event.put("type", "cells");
+                event.put("cells", aggregation.cells.drain(aggregation.aggregator));
+                sendPipelineEvent(event);
+            }
+            handler.postDelayed(this, aggregation.flushMilliseconds);
+        }
+    };
 
-                    if (location.isFromMockProvider()) {
-                        loc.put("isMock", (double) 1);
+    /**
+     * Enables or disables satellite status aggregation. When
+     * {@code attachToFixes} is set, streamed fixes carry the latest summary
+     * under {@code gnss} and {@code satelliteNumber} counts the satellites
+     * used in the fix. With a positive {@code eventIntervalMilliseconds},
+     * summaries are also sent through the pipeline sinks at most that often.
+     * Satellites are only listened to while location updates run.
+     * Needs Android N, this does nothing on older versions.
+     */
+    public void setGnssStatus(boolean enabled, boolean attachToFixes, long eventIntervalMilliseconds) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return;
+        }
+        runOnMain(() -> {
+            gnssSummary = null;
+            synchronized (updatesLock) {
+                GnssStage current = gnss;
+                if (!enabled) {
+                    if (current != null) {
+                        current.provider.stop();
+                        gnss = null;
                     }
-                } else {
-                    loc.put("isMock", (double) 0);
+                    return;
+                }
+                GnssStatusProvider provider = current != null
+                        ? current.provider : new GnssStatusProvider(locationManager, this::onGnssStatus);
+                gnss = new GnssStage(provider, attachToFixes, eventIntervalMilliseconds);
+                // Runs along with the location updates, they start it otherwise
+                if (session.isRunning()) {
+                    provider.start();
                 }
+            }
+        });
+    }
 
-                // Using NMEA Data to get MSL level altitude
-                if (mLastMslAltitude == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
-                    loc.put("altitude", location.getAltitude());
-                } else {
-                    loc.put("altitude", mLastMslAltitude);
+    private void onGnssStatus(GnssAggregator status) {
+        gnssSummary = null;
+        GnssStage gnss = this.gnss;
+        if (gnss == null || gnss.eventIntervalMilliseconds <= 0 || pipelineSinks.isEmpty()) {
+            return;
+        }
+        long now = status.getElapsedRealtimeNanos();
+        if (now - lastGnssEventNanos < gnss.eventIntervalMilliseconds * 1_000_000L) {
+            return;
+        }
+        lastGnssEventNanos = now;
+        HashMap<String, Object> event = status.toMap();
+        event.put("type", "gnss");
+        sendPipelineEvent(event);
+    }
+
+    /**
+     * Enables map matching against the road segment file at {@code path}, see
+     * {@link RoadSegments} for its format, or disables it with a null path.
+     * Fixes then carry the matched position, the segment id and the match
+     * confidence when a segment lies within {@code searchRadiusMeters}.
+     * <p>
+     * The file is indexed on a background thread, fixes keep the previous
+     * matcher until then. {@code result} is answered on the main looper, with
+     * 0 if a later call replaced this one first.
+     */
+    public void setMapMatching(@Nullable final String path, final double searchRadiusMeters,
+                               final int maxCandidates, final double betaMeters,
+                               final double disconnectedPenalty, final long maxGapMilliseconds,
+                               final Result result) {
+        runOnMain(() -> {
+            final int generation = ++mapMatchingGeneration;
+            if (path == null) {
+                mapMatcher = null;
+                result.success(1);
+                return;
+            }
+            Thread loader = new Thread(() -> {
+                MapMatcher matcher = null;
+                Exception error = null;
+                try {
+                    RoadSegments segments = new RoadSegments(path, Math.max(50, searchRadiusMeters * 2));
+                    matcher = new MapMatcher(segments, searchRadiusMeters, maxCandidates, 5, betaMeters,
+                            disconnectedPenalty, maxGapMilliseconds);
+                } catch (Exception e) {
+                    // Also a corrupt index, which surfaces as a runtime exception
+                    error = e;
                 }
+                final MapMatcher loaded = matcher;
+                final Exception failure = error;
+                handler.post(() -> {
+                    if (generation != mapMatchingGeneration) {
+                        result.success(0);
+                    } else if (failure != null) {
+                        result.error("MAP_MATCHING_ERROR",
+                                "An unexpected error happened during map matching setup:" + failure.getMessage(),
+                                null);
+                    } else {
+                        mapMatcher = loaded;
+                        result.success(1);
+                    }
+                });
+            }, "MapMatching");
+            loader.setDaemon(true);
+            loader.start();
+        });
+    }
+
+    private HashMap<String, Object> serialize(LocationSerializer serializer, Location location) {
+        HashMap<String, Object> loc = serializer.serialize(location, mLastMslAltitude);
+        MapMatcher matcher = mapMatcher;
+        if (matcher != null && matcher.isMatched()
+                && (serializer.getMask() & LocationSerializer.LATITUDE) != 0) {
+            loc.put("matchedLatitude", matcher.getLatitude());
+            loc.put("matchedLongitude", matcher.getLongitude());
+            loc.put("segmentId", matcher.getSegmentId());
+            loc.put("matchConfidence", matcher.getConfidence());
+        }
+        GnssStage gnss = this.gnss;
+        if (gnss != null && gnss.attachToFixes && gnss.provider.getAggregator().hasStatus()
+                && (serializer.getMask() & LocationSerializer.SATELLITE_NUMBER) != 0) {
+            GnssAggregator status = gnss.provider.getAggregator();
+            if (gnssSummary == null) {
+                gnssSummary = status.toMap();
+            }
+            loc.put("satelliteNumber", status.getUsed());
+            loc.put("gnss", gnssSummary);
+        }
+        return loc;
+    }
 
-                loc.put("speed", (double) location.getSpeed());
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                    loc.put("speed_accuracy", (double) location.getSpeedAccuracyMetersPerSecond());
+    /**
+     * Enables or disables energy budget scheduling. Location updates then
+     * alternate between high accuracy bursts and windows at
+     * {@code restPriority}, so that a high accuracy fix is at most
+     * {@code maxStalenessMilliseconds} old while the high accuracy share of
+     * the time stays within {@code dutyCycle}, or within
+     * {@code milliampHoursPerHour} under the cost model when given.
+     *
+     * @param costMilliamps the current drawn at each {@link DutyCycleScheduler}
+     *                      priority, or null to keep the current model
+     */
+    public void setEnergyBudget(boolean enabled, double dutyCycle, @Nullable Double milliampHoursPerHour,
+                                long minBurstMilliseconds, long maxStalenessMilliseconds, int restPriority,
+                                float targetAccuracy, @Nullable double[] costMilliamps) {
+        synchronized (updatesLock) {
+            if (!enabled) {
+                if (this.dutyCycle != null) {
+                    handler.removeCallbacks(dutyCycleTick);
+                    this.dutyCycle = null;
+                    reissueLocationRequest();
                 }
-                loc.put("heading", (double) location.getBearing());
-                loc.put("time", (double) location.getTime());
+                return;
+            }
+            if (this.dutyCycle == null) {
+                this.dutyCycle = new DutyCycleScheduler(SystemClock::elapsedRealtime);
+            }
+            DutyCycleScheduler scheduler = this.dutyCycle;
+            if (costMilliamps != null) {
+                for (int i = 0; i < costMilliamps.length && i < DutyCycleScheduler.PRIORITY_COUNT; i++) {
+                    scheduler.setCost(i, costMilliamps[i]);
+                }
+            }
+            int rest = schedulerPriority(restPriority);
+            scheduler.configure(milliampHoursPerHour != null
+                            ? scheduler.dutyCycleForBudget(milliampHoursPerHour, rest) : dutyCycle,
+                    minBurstMilliseconds, maxStalenessMilliseconds, rest, targetAccuracy);
+            if (!scheduler.isRunning() && session.isRunning()) {
+                scheduler.start();
+            }
+            reissueLocationRequest();
+        }
+    }
+
+    /** Time spent at each priority and the estimated charge, or null without a budget. */
+    @Nullable
+    public Map<String, Object> getEnergyAccounting() {
+        synchronized (updatesLock) {
+            return dutyCycle != null ? dutyCycle.getAccounting() : null;
+        }
+    }
 
-                if (getLocationResult != null) {
-                    getLocationResult.success(loc);
-                    getLocationResult = null;
+    private final Runnable dutyCycleTick = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (updatesLock) {
+                if (dutyCycle == null || !dutyCycle.isRunning()) {
+                    return;
                 }
-                if (events != null) {
-                    events.success(loc);
+                if (dutyCycle.advance()) {
+                    reissueLocationRequest();
                 } else {
-                    if (mFusedLocationClient != null) {
-                        mFusedLocationClient.removeLocationUpdates(mLocationCallback);
-                    }
+                    scheduleDutyCycleTick();
                 }
             }
-        };
+        }
+    };
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            mMessageListener = (message, timestamp) -> {
-                if (message.startsWith("$")) {
-                    String[] tokens = message.split(",");
-                    String type = tokens[0];
+    // An accurate fix ends the burst from here, under the lock the fix path does not take
+    private final Runnable endBurst = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (updatesLock) {
+                if (dutyCycle != null && dutyCycle.endBurst()) {
+                    dutyCycleTick.run();
+                }
+            }
+        }
+    };
 
-                    // Parse altitude above sea level, Detailed description of NMEA string here
-                    // http://aprs.gids.nl/nmea/#gga
-                    if (type.startsWith("$GPGGA") && tokens.length > 9) {
-                        if (!tokens[9].isEmpty()) {
-                            mLastMslAltitude = Double.parseDouble(tokens[9]);
+    private void scheduleDutyCycleTick() {
+        handler.removeCallbacks(dutyCycleTick);
+        burstTargetAccuracy = dutyCycle != null ? dutyCycle.getBurstTargetAccuracy() : 0;
+        if (dutyCycle != null && dutyCycle.isRunning()) {
+            handler.postDelayed(dutyCycleTick,
+                    Math.max(0, dutyCycle.getNextTransitionMillis() - SystemClock.elapsedRealtime()));
+        }
+    }
+
+    /** Replaces the request of the running updates with one for the current priority. */
+    private void reissueLocationRequest() {
+        createLocationRequest();
+        if (mFusedLocationClient != null && session.isRunning()) {
+            mFusedLocationClient.requestLocationUpdates(mLocationRequest, mLocationCallback,
+                    Looper.getMainLooper());
+        }
+        scheduleDutyCycleTick();
+    }
+
+    private static int schedulerPriority(int priority) {
+        switch (priority) {
+            case Priority.PRIORITY_HIGH_ACCURACY:
+                return DutyCycleScheduler.HIGH_ACCURACY;
+            case Priority.PRIORITY_BALANCED_POWER_ACCURACY:
+                return DutyCycleScheduler.BALANCED;
+            case Priority.PRIORITY_LOW_POWER:
+                return DutyCycleScheduler.LOW_POWER;
+            default:
+                return DutyCycleScheduler.NO_POWER;
+        }
+    }
+
+    private static final int[] SCHEDULER_PRIORITIES = {
+            Priority.PRIORITY_HIGH_ACCURACY,
+            Priority.PRIORITY_BALANCED_POWER_ACCURACY,
+            Priority.PRIORITY_LOW_POWER,
+            Priority.PRIORITY_PASSIVE,
+    };
+
+    /**
+     * Registers a native consumer of fixes. Location updates keep running
+     * while at least one is registered.
+     */
+    public void addFixListener(FixListener listener) {
+        fixListeners.addIfAbsent(listener);
+        if (checkPermissions()) {
+            startRequestingLocation();
+        }
+    }
+
+    public void removeFixListener(FixListener listener) {
+        fixListeners.remove(listener);
+        stopRequestingLocation();
+    }
+
+    private void sendPipelineEvent(HashMap<String, Object> event) {
+        for (EventSink sink : pipelineSinks) {
+            sink.success(event);
+        }
+    }
+
+    /**
+     * Whether fixes are consumed by a listener, either the location stream or
+     * a native stage publishing to the pipeline events.
+     */
+    public boolean isStreaming() {
+        return !subscriptions.isEmpty()
+                || !fixListeners.isEmpty()
+                || bufferCapacity > 0
+                || (!pipelineSinks.isEmpty() && (segmentation != null || aggregation != null));
+    }
+
+    private void sendEstimate(DeadReckoning.Estimate estimate) {
+        if (subscriptions.isEmpty() || isSuppressingFixes()) {
+            return;
+        }
+        long timeMillis = System.currentTimeMillis();
+        LocationSerializer defaultSerializer = streamSerializer;
+        for (Subscription subscription : subscriptions) {
+            LocationSerializer serializer =
+                    subscription.serializer != null ? subscription.serializer : defaultSerializer;
+            HashMap<String, Object> loc = findSerialized(serializer);
+            if (loc == null) {
+                loc = serializer.serialize(estimate, timeMillis);
+                fixSerializers.add(serializer);
+                serializedFixes.add(loc);
+            }
+            subscription.sink.success(loc);
+        }
+        fixSerializers.clear();
+        serializedFixes.clear();
+    }
+
+    // Raw fixes, and the estimates between them, are withheld at a stay or while aggregating
+    private boolean isSuppressingFixes() {
+        Aggregation aggregation = this.aggregation;
+        Segmentation segmentation = this.segmentation;
+        return (aggregation != null && aggregation.suppressFixes)
+                || (segmentation != null && segmentation.suppressFixesAtStay
+                && segmentation.segmenter.isAtStay());
+    }
+
+    /**
+     * Removes the updates, then fails the pending one-shot results and the
+     * current subscriptions. Listeners and results added concurrently are
+     * left alone.
+     */
+    private void sendError(String errorCode, String errorMessage, Object errorDetails) {
+        session.fail();
+        Result pending;
+        while ((pending = locationResults.poll()) != null) {
+            pending.error(errorCode, errorMessage, errorDetails);
+        }
+        for (Subscription subscription : subscriptions) {
+            if (subscriptions.remove(subscription)) {
+                subscription.sink.error(errorCode, errorMessage, errorDetails);
+            }
+        }
+    }
+
+    private LocationCallback newLocationCallback() {
+        return new LocationCallback() {
+            @Override
+            public void onLocationResult(LocationResult locationResult) {
+                super.onLocationResult(locationResult);
+                Location location = locationResult.getLastLocation();
+                session.onFix();
+                float target = burstTargetAccuracy;
+                if (target > 0 && location.getAccuracy() <= target) {
+                    handler.post(endBurst);
+                }
+
+                DeadReckoningProvider deadReckoning = FlutterLocation.this.deadReckoning;
+                if (deadReckoning != null) {
+                    deadReckoning.onFix(location);
+                }
+                for (FixListener listener : fixListeners) {
+                    listener.onFix(location);
+                }
+
+                MapMatcher matcher = mapMatcher;
+                if (matcher != null) {
+                    matcher.onFix(location.getLatitude(), location.getLongitude(), location.getAccuracy(),
+                            location.getTime());
+                }
+
+                Segmentation segmentation = FlutterLocation.this.segmentation;
+                if (segmentation != null) {
+                    segmentation.segmenter.onFix(location.getLatitude(), location.getLongitude(),
+                            location.getTime());
+                }
+                Aggregation aggregation = FlutterLocation.this.aggregation;
+                if (aggregation != null) {
+                    aggregation.aggregator.onFix(location.getLatitude(), location.getLongitude(),
+                            location.getAccuracy(), location.getTime());
+                }
+
+                if (!locationResults.isEmpty()) {
+                    HashMap<String, Object> loc = serialize(fullSerializer, location);
+                    Result pending;
+                    while ((pending = locationResults.poll()) != null) {
+                        pending.success(loc);
+                    }
+                }
+                if (!subscriptions.isEmpty()) {
+                    if (!isSuppressingFixes()) {
+                        sendFix(location);
+                    }
+                } else if (bufferCapacity > 0) {
+                    HashMap<String, Object> loc = serialize(fullSerializer, location);
+                    synchronized (bufferedFixes) {
+                        if (bufferCapacity > 0) {
+                            if (bufferedFixes.size() >= bufferCapacity) {
+                                bufferedFixes.pollFirst();
+                            }
+                            bufferedFixes.addLast(loc);
                         }
                     }
+                } else if (!isStreaming()) {
+                    stopRequestingLocation();
                 }
-            };
+            }
+        };
+    }
+
+    private void sendFix(Location location) {
+        LocationSerializer defaultSerializer = streamSerializer;
+        // Iterates over a snapshot, subscriptions may change meanwhile
+        for (Subscription subscription : subscriptions) {
+            LocationSerializer serializer =
+                    subscription.serializer != null ? subscription.serializer : defaultSerializer;
+
+            HashMap<String, Object> loc = findSerialized(serializer);
+            if (loc == null) {
+                loc = serialize(serializer, location);
+                fixSerializers.add(serializer);
+                serializedFixes.add(loc);
+            }
+            subscription.sink.success(loc);
+        }
+        fixSerializers.clear();
+        serializedFixes.clear();
+    }
+
+    @Nullable
+    private HashMap<String, Object> findSerialized(LocationSerializer serializer) {
+        for (int i = 0; i < fixSerializers.size(); i++) {
+            if (fixSerializers.get(i) == serializer) {
+                return serializedFixes.get(i);
+            }
         }
+        return null;
     }
 
+    // Called under updatesLock
     private void createLocationRequest() {
+        int priority = dutyCycle != null && dutyCycle.isRunning()
+                ? SCHEDULER_PRIORITIES[dutyCycle.getPriority()] : this.locationAccuracy;
         mLocationRequest = new LocationRequest.Builder(this.updateIntervalMilliseconds)
                 .setMinUpdateIntervalMillis(this.fastestUpdateIntervalMilliseconds)
-                .setPriority(this.locationAccuracy)
+                .setPriority(priority)
                 .setMinUpdateDistanceMeters(this.distanceFilter)
                 .build();
     }
 
+    /** Whether step sensors deliver events, which needs a runtime permission from Android 10 on. */
+    public boolean checkActivityRecognitionPermission() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.Q
+                || ActivityCompat.checkSelfPermission(context, Manifest.permission.ACTIVITY_RECOGNITION)
+                == PackageManager.PERMISSION_GRANTED;
+    }
+
     public boolean checkPermissions() {
         int locationPermissionState = ActivityCompat.checkSelfPermission(context,
                 Manifest.permission.ACCESS_FINE_LOCATION);
         return locationPermissionState == PackageManager.PERMISSION_GRANTED;
     }
 
+    /**
+     * Requests the location permission and resolves {@code result} with the
+     * permission status. A request still waiting is cancelled.
+     */
+    public void requestPermissions(@Nullable Result result) {
+        if (result != null) {
+            Result previous = permissionResult.getAndSet(result);
+            if (previous != null) {
+                previous.error("PERMISSION_REQUEST_CANCELLED", "A newer permission request was made", null);
+            }
+        }
+        requestPermissions();
+    }
+
     public void requestPermissions() {
         if (checkPermissions()) {
-            result.success(1);
+            resolvePermission(1);
             return;
         }
-        if (result != null) {
-            result.error("PERMISSION_DENIED", "Location permission not granted", null);
-            result = null;
+        Result pending = permissionResult.getAndSet(null);
+        if (pending != null) {
+            pending.error("PERMISSION_DENIED", "Location permission not granted", null);
+        }
+    }
+
+    private void resolvePermission(int status) {
+        Result pending = permissionResult.getAndSet(null);
+        if (pending != null) {
+            pending.success(status);
         }
     }
 
@@ -272,17 +1136,75 @@ public class FlutterLocation implements PluginRegistry.RequestPermissionsResultL
     }
 
     public void startRequestingLocation() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                && ActivityCompat.checkSelfPermission(context,
+                Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        session.start();
+        if (!subscriptions.isEmpty()) {
+            runOnMain(() -> {
+                DeadReckoningProvider deadReckoning = this.deadReckoning;
+                if (deadReckoning != null) {
+                    deadReckoning.start();
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops the work done on behalf of the location stream. Location updates
+     * keep running while a native stage still consumes them.
+     */
+    public void stopRequestingLocation() {
+        if (subscriptions.isEmpty()) {
+            runOnMain(() -> {
+                DeadReckoningProvider deadReckoning = this.deadReckoning;
+                if (deadReckoning != null && subscriptions.isEmpty()) {
+                    deadReckoning.stop();
+                }
+            });
+        }
+        session.stop();
+    }
+
+    // Called by the session under updatesLock. Fixes, NMEA sentences and satellite
+    // status are all delivered on the main looper.
+    private void registerUpdates() {
+        if (dutyCycle != null) {
+            dutyCycle.start();
+            createLocationRequest();
+            scheduleDutyCycleTick();
+        }
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            if (ActivityCompat.checkSelfPermission(context,
-                    Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-                return;
+            locationManager.addNmeaListener(mMessageListener, handler);
+            GnssStage gnss = this.gnss;
+            if (gnss != null) {
+                gnss.provider.start();
             }
-            locationManager.addNmeaListener(mMessageListener, null);
         }
+        if (mFusedLocationClient == null) {
+            mFusedLocationClient = LocationServices.getFusedLocationProviderClient(context);
+        }
+        mFusedLocationClient.requestLocationUpdates(mLocationRequest, mLocationCallback,
+                Looper.getMainLooper());
+    }
 
+    private void unregisterUpdates() {
+        if (dutyCycle != null) {
+            dutyCycle.pause();
+            handler.removeCallbacks(dutyCycleTick);
+            burstTargetAccuracy = 0;
+        }
         if (mFusedLocationClient != null) {
-            mFusedLocationClient
-                    .requestLocationUpdates(mLocationRequest, mLocationCallback, Looper.myLooper());
+            mFusedLocationClient.removeLocationUpdates(mLocationCallback);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            locationManager.removeNmeaListener(mMessageListener);
+            GnssStage gnss = this.gnss;
+            if (gnss != null) {
+                gnss.provider.stop();
+            }
         }
     }
 }
@@ -12,12 +12,15 @@ import android.content.pm.PackageManager
 import android.os.Binder
 import android.os.Build
 import android.os.IBinder
+import android.os.Trace
 import android.util.Log
 import androidx.core.app.ActivityCompat
 import androidx.core.app.NotificationCompat
 import androidx.core.app.NotificationManagerCompat
+import androidx.core.content.ContextCompat
 import io.flutter.plugin.common.MethodChannel
 import io.flutter.plugin.common.PluginRegistry
+import java.io.File
 
 const val kDefaultChannelName: String = "Location background service"
 const val kDefaultNotificationTitle: String = "Location background service running"
@@ -42,13 +45,20 @@ class BackgroundNotification(
     private var builder: NotificationCompat.Builder =
         NotificationCompat.Builder(context, channelId)
             .setPriority(NotificationCompat.PRIORITY_HIGH)
+            .setOnlyAlertOnce(true)
+
+    // Resource lookups by name are slow, resolve each icon and the intent only once
+    private val drawableIds = HashMap<String, Int>()
+    private val bringToFrontIntent: PendingIntent? by lazy { buildBringToFrontIntent() }
 
     init {
         updateNotification(options, false)
     }
 
     private fun getDrawableId(iconName: String): Int {
-        return context.resources.getIdentifier(iconName, "drawable", context.packageName)
+        return drawableIds.getOrPut(iconName) {
+            context.resources.getIdentifier(iconName, "drawable", context.packageName)
+        }
     }
 
     private fun buildBringToFrontIntent(): PendingIntent? {
@@ -98,21 +108,39 @@ class BackgroundNotification(
 
         builder =
             if (options.onTapBringToFront) {
-                builder.setContentIntent(buildBringToFrontIntent())
+                builder.setContentIntent(bringToFrontIntent)
             } else {
                 builder.setContentIntent(null)
             }
 
         if (notify) {
-            val notificationManager = NotificationManagerCompat.from(context)
-            if (ActivityCompat.checkSelfPermission(
-                    context,
-                    Manifest.permission.POST_NOTIFICATIONS
-                ) != PackageManager.PERMISSION_GRANTED
-            ) {
-                return
-            }
-            notificationManager.notify(notificationId, builder.build())
+            post()
+        }
+    }
+
+    private fun post() {
+        val notificationManager = NotificationManagerCompat.from(context)
+        if (ActivityCompat.checkSelfPermission(
+                context,
+                Manifest.permission.POST_NOTIFICATIONS
+            ) != PackageManager.PERMISSION_GRANTED
+        ) {
+            return
+        }
+        notificationManager.notify(notificationId, builder.build())
+    }
+
+    /**
+     * Replaces the texts of the notification, leaving the icon, color and
+     * intent alone. Null texts fall back to the current [NotificationOptions].
+     */
+    fun updateContent(title: String?, text: String?, subText: String?, isVisible: Boolean) {
+        builder =
+            builder.setContentTitle(title ?: options.title)
+                .setContentText(text ?: options.subtitle)
+                .setSubText(subText ?: options.description)
+        if (isVisible) {
+            post()
         }
     }
 
@@ -138,16 +166,51 @@ class FlutterLocationService : Service(), PluginRegistry.RequestPermissionsResul
         private const val REQUEST_PERMISSIONS_REQUEST_CODE: Int = 641
         private const val ONGOING_NOTIFICATION_ID = 75418
         private const val CHANNEL_ID = "flutter_location_channel_01"
+        private const val UPLOAD_SPOOL_DIRECTORY = "location_upload"
+        private const val OFFLINE_BUFFER_CAPACITY = 1000
     }
 
     private val binder = LocalBinder()
     private var isForeground = false
+    private var isStarted = false
+    private lateinit var sessionStore: SessionStore
+    private var notificationOptions = NotificationOptions()
     private var context: Context? = null
     private var backgroundNotification: BackgroundNotification? = null
     var location: FlutterLocation? = null
         private set
     var result: MethodChannel.Result? = null
 
+    private var liveNotification: LiveNotification? = null
+
+    private var uploader: LocationUploader? = null
+    private val uploadListener =
+        FlutterLocation.FixListener { fix ->
+            uploader?.onFix(
+                fix.time,
+                fix.latitude,
+                fix.longitude,
+                fix.altitude,
+                fix.accuracy.toDouble(),
+                fix.speed.toDouble(),
+                fix.bearing.toDouble(),
+            )
+        }
+
+    private var recorder: TrackRecorder? = null
+    private val recordingListener =
+        FlutterLocation.FixListener { fix ->
+            recorder?.onFix(
+                fix.time,
+                fix.latitude,
+                fix.longitude,
+                fix.altitude,
+                fix.accuracy.toDouble(),
+                fix.speed.toDouble(),
+                fix.bearing.toDouble(),
+            )
+        }
+
     inner class LocalBinder : Binder() {
         fun getService(): FlutterLocationService = this@FlutterLocationService
     }
@@ -156,12 +219,111 @@ class FlutterLocationService : Service(), PluginRegistry.RequestPermissionsResul
         super.onCreate()
         Log.d(TAG, "Creating service.")
 
+        Trace.beginSection("FlutterLocationService#onCreate")
         location = FlutterLocation(applicationContext, null)
-        backgroundNotification =
-            BackgroundNotification(applicationContext, CHANNEL_ID, ONGOING_NOTIFICATION_ID)
+        sessionStore = SessionStore(applicationContext)
+        restoreSession()
+        restoreUpload()
+        location?.setSessionListener { persistSession() }
+        Trace.endSection()
+    }
+
+    override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
+        isStarted = true
+        // Recreated by the system after the process died, onCreate restored the session
+        updateStarted()
+        return START_STICKY
+    }
+
+    /**
+     * Keeps the service started while it has work that must go on without an
+     * engine, so the system restarts it if the process dies. The restarted
+     * service resumes the foreground session and the upload in [onCreate]; a
+     * recording ends with the process, its file complete up to the last
+     * flush. Outside of foreground mode, Android 8+ still stops the service
+     * about a minute after the app leaves the foreground.
+     */
+    private fun updateStarted() {
+        val needed = isForeground || uploader != null || recorder != null
+        if (needed && !isStarted) {
+            try {
+                startService(Intent(applicationContext, FlutterLocationService::class.java))
+                isStarted = true
+            } catch (e: IllegalStateException) {
+                // Android 8+ refuses to start services while the app is in the background
+                Log.w(TAG, "Could not start the service.", e)
+            }
+        } else if (!needed && isStarted) {
+            // Still alive while an engine is bound, but no longer restarted by the system
+            stopSelf()
+            isStarted = false
+        }
+    }
+
+    /**
+     * Resumes the foreground session persisted by a previous process, without
+     * waiting for Dart. Fixes are buffered until an engine listens again.
+     * Sessions that ran without foreground mode ended with their engine.
+     */
+    private fun restoreSession() {
+        val session = sessionStore.load() ?: return
+        val location = location ?: return
+        notificationOptions = session.notificationOptions
+        if (!session.tracking || !session.foreground || !location.checkPermissions()) {
+            return
+        }
+
+        Log.d(TAG, "Restoring tracking session.")
+        location.setOfflineBuffer(OFFLINE_BUFFER_CAPACITY)
+        location.changeSettings(
+            session.priority,
+            session.intervalMillis,
+            session.fastestIntervalMillis,
+            session.distanceFilter,
+        )
+        notification().updateOptions(notificationOptions, false)
+        try {
+            enableBackgroundMode()
+        } catch (e: IllegalStateException) {
+            // Android 12+ may refuse to start a foreground service from the background
+            Log.w(TAG, "Could not restore foreground mode.", e)
+            location.setOfflineBuffer(0)
+        }
+    }
+
+    /** Resumes the upload configured in a previous process, sending what it spooled. */
+    private fun restoreUpload() {
+        val config = sessionStore.loadUpload() ?: return
+        Log.d(TAG, "Restoring upload.")
+        uploader = LocationUploader(config, File(filesDir, UPLOAD_SPOOL_DIRECTORY))
+        location?.addFixListener(uploadListener)
+        updateStarted()
+    }
+
+    private fun persistSession() {
+        val location = location ?: return
+        sessionStore.save(
+            PersistedSession(
+                tracking = location.hasLocationSinks() || location.isBufferingOffline,
+                priority = location.locationPriority,
+                intervalMillis = location.updateIntervalMilliseconds,
+                fastestIntervalMillis = location.fastestUpdateIntervalMilliseconds,
+                distanceFilter = location.distanceFilter,
+                foreground = isForeground,
+                notificationOptions = notificationOptions,
+            ),
+        )
+    }
+
+    /** The notification resolves resources, so it is only built once it is needed. */
+    private fun notification(): BackgroundNotification {
+        return backgroundNotification
+            ?: BackgroundNotification(applicationContext, CHANNEL_ID, ONGOING_NOTIFICATION_ID)
+                .also { backgroundNotification = it }
     }
 
     override fun onBind(intent: Intent?): IBinder {
+        // The binder is shared by every engine, each one fans into the same session
         Log.d(TAG, "Binding to location service.")
         return binder
     }
@@ -173,6 +335,20 @@ class FlutterLocationService : Service(), PluginRegistry.RequestPermissionsResul
 
     override fun onDestroy() {
         Log.d(TAG, "Destroying service.")
+        location?.removeFixListener(uploadListener)
+        uploader?.close()
+        uploader = null
+        location?.removeFixListener(recordingListener)
+        recorder?.stop { _, error ->
+            if (error != null) {
+                Log.w(TAG, "Could not finish the recording.", error)
+            }
+        }
+        recorder = null
+        setLiveNotification(null, null, null, 0, null)
+        // The persisted session stays as it was, for the next start
+        location?.setSessionListener(null)
+        location?.dispose()
         location = null
         backgroundNotification = null
         super.onDestroy()
@@ -182,7 +358,7 @@ class FlutterLocationService : Service(), PluginRegistry.RequestPermissionsResul
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
             val locationPermissionState =
                 ActivityCompat.checkSelfPermission(
-                    context!!,
+                    context ?: applicationContext,
                     Manifest.permission.ACCESS_BACKGROUND_LOCATION
                 )
             return locationPermissionState == PackageManager.PERMISSION_GRANTED
@@ -203,8 +379,7 @@ class FlutterLocationService : Service(), PluginRegistry.RequestPermissionsResul
             }
         } else {
             location?.let {
-                it.result = this.result
-                it.requestPermissions()
+                it.requestPermissions(this.result)
                 this.result = null
             }
         }
@@ -226,11 +401,19 @@ class FlutterLocationService : Service(), PluginRegistry.RequestPermissionsResul
             Log.d(TAG, "Service already in foreground mode.")
         } else {
             Log.d(TAG, "Start service in foreground mode.")
-            backgroundNotification?.let {
-                val notification = it.build()
-                startForeground(ONGOING_NOTIFICATION_ID, notification)
-                isForeground = true
+            // A started service is restarted by the system if the process dies
+            if (!isStarted) {
+                ContextCompat.startForegroundService(
+                    applicationContext,
+                    Intent(applicationContext, FlutterLocationService::class.java),
+                )
+                isStarted = true
             }
+            val notification = notification().build()
+            startForeground(ONGOING_NOTIFICATION_ID, notification)
+            isForeground = true
+            liveNotification?.isVisible = true
+            persistSession()
         }
     }
 
@@ -242,10 +425,17 @@ class FlutterLocationService : Service(), PluginRegistry.RequestPermissionsResul
             stopForeground(true)
         }
         isForeground = false
+        liveNotification?.isVisible = false
+        location?.setOfflineBuffer(0)
+        updateStarted()
+        persistSession()
     }
 
     fun changeNotificationOptions(options: NotificationOptions): Map<String, Any>? {
-        backgroundNotification?.updateOptions(options, isForeground)
+        notification().updateOptions(options, isForeground)
+        liveNotification?.invalidate()
+        notificationOptions = options
+        persistSession()
         return if (isForeground) {
             mapOf("channelId" to CHANNEL_ID, "notificationId" to ONGOING_NOTIFICATION_ID)
         } else {
@@ -253,6 +443,159 @@ class FlutterLocationService : Service(), PluginRegistry.RequestPermissionsResul
         }
     }
 
+    /**
+     * Fills the notification texts from the running fixes using templates
+     * (see [LiveNotificationTemplate]), posting at most once every
+     * [minIntervalMillis] and only when a text changed. Passing no template
+     * turns live updates off and restores the configured texts.
+     */
+    fun setLiveNotification(
+        title: String?,
+        text: String?,
+        subText: String?,
+        minIntervalMillis: Long,
+        state: LiveTrackingState?,
+    ) {
+        liveNotification?.let {
+            location?.removeFixListener(it)
+            it.stop()
+            liveNotification = null
+            backgroundNotification?.updateContent(null, null, null, isForeground)
+        }
+        if (title == null && text == null && subText == null) {
+            return
+        }
+
+        val live =
+            LiveNotification(
+                notification(),
+                title?.let { LiveNotificationTemplate(it) },
+                text?.let { LiveNotificationTemplate(it) },
+                subText?.let { LiveNotificationTemplate(it) },
+                minIntervalMillis,
+                state ?: LiveTrackingState(),
+            )
+        live.isVisible = isForeground
+        liveNotification = live
+        location?.addFixListener(live)
+    }
+
+    /**
+     * Starts uploading every fix to [config]'s endpoint, replacing any
+     * previous upload configuration. Batches left in the spool by a previous
+     * session are sent as well. The service stays started while uploading,
+     * and the configuration is persisted, so the upload resumes in the next
+     * process until [stopUpload].
+     */
+    fun configureUpload(config: LocationUploader.Config) {
+        location?.removeFixListener(uploadListener)
+        uploader?.close()
+        uploader = LocationUploader(config, File(filesDir, UPLOAD_SPOOL_DIRECTORY))
+        location?.addFixListener(uploadListener)
+        sessionStore.saveUpload(config)
+        updateStarted()
+    }
+
+    fun stopUpload() {
+        location?.removeFixListener(uploadListener)
+        uploader?.close()
+        uploader = null
+        sessionStore.saveUpload(null)
+        updateStarted()
+    }
+
+    fun flushUpload() {
+        uploader?.flush()
+    }
+
+    fun getUploadState(): Map<String, Any?>? {
+        return uploader?.state
+    }
+
+    /**
+     * Records every fix to [path], relative paths being resolved against the
+     * files directory, until [stopRecording]. A recording already running is
+     * stopped first. Recording goes on while no engine is attached, the
+     * service stays started meanwhile, but it is not resumed after the
+     * process dies.
+     *
+     * The file is created on the recorder's thread, once the previous
+     * recording is closed. [result] then gets its absolute path.
+     */
+    fun startRecording(path: String, format: Int, flushIntervalMillis: Long, result: MethodChannel.Result) {
+        val file = File(path).let { if (it.isAbsolute) it else File(filesDir, path) }
+        val previous = recorder
+        val recorder = TrackRecorder(file, format, flushIntervalMillis)
+        this.recorder = recorder
+        location?.addFixListener(recordingListener)
+        updateStarted()
+
+        val start = {
+            recorder.start { _, error ->
+                ContextCompat.getMainExecutor(this).execute {
+                    if (error == null) {
+                        result.success(file.absolutePath)
+                        return@execute
+                    }
+                    if (this.recorder === recorder) {
+                        location?.removeFixListener(recordingListener)
+                        this.recorder = null
+                        updateStarted()
+                    }
+                    recorder.stop { _, _ -> }
+                    result.error(
+                        "RECORDING_ERROR",
+                        "An unexpected error happened during recording setup:" + error.message,
+                        null,
+                    )
+                }
+            }
+        }
+        if (previous == null) {
+            start()
+        } else {
+            // Fixes meanwhile already go to the new recorder, which holds them until it starts
+            previous.stop { _, error ->
+                if (error != null) {
+                    Log.w(TAG, "Could not finish the previous recording.", error)
+                }
+                start()
+            }
+        }
+    }
+
+    /**
+     * Finishes the current recording. [result] then gets its statistics, or
+     * null right away if none ran.
+     */
+    fun stopRecording(result: MethodChannel.Result) {
+        val recorder = recorder
+        if (recorder == null) {
+            result.success(null)
+            return
+        }
+        location?.removeFixListener(recordingListener)
+        this.recorder = null
+        updateStarted()
+        recorder.stop { stats, error ->
+            ContextCompat.getMainExecutor(this).execute {
+                if (error == null) {
+                    result.success(stats)
+                } else {
+                    result.error(
+                        "RECORDING_ERROR",
+                        "An unexpected error happened while finishing the recording:" + error.message,
+                        null,
+                    )
+                }
+            }
+        }
+    }
+
+    fun getRecordingStats(): Map<String, Any?>? {
+        return recorder?.stats
+    }
+
     fun setContext(context: Context?) {
         this.context = context
     }
@@ -0,0 +1,164 @@
+package com.lyokone.location;
+
+import java.util.HashMap;
+
+/**
+ * Summarizes one GNSS status report per constellation: satellites visible
+ * and used in the fix, mean and top 4 carrier-to-noise density, and how many
+ * satellites have almanac and ephemeris data.
+ * <p>
+ * Satellites are fed one at a time between {@link #begin} and {@link #end};
+ * all state lives in preallocated primitive arrays, so a report allocates
+ * nothing. Constellation ids follow {@code android.location.GnssStatus}. It is
+ * not thread safe.
+ */
+final class GnssAggregator {
+    static final int CONSTELLATION_COUNT = 8;
+
+    private static final String[] CONSTELLATION_NAMES = {
+            "unknown", "gps", "sbas", "glonass", "qzss", "beidou", "galileo", "irnss",
+    };
+    private static final int TOP_COUNT = 4;
+
+    private final int[] visible = new int[CONSTELLATION_COUNT];
+    private final int[] used = new int[CONSTELLATION_COUNT];
+    private final double[] cn0Sums = new double[CONSTELLATION_COUNT];
+    private final int[] cn0Counts = new int[CONSTELLATION_COUNT];
+    // Highest C/N0 values of the report, in descending order
+    private final float[] topCn0 = new float[TOP_COUNT];
+    private int topCount;
+    private int withAlmanac;
+    private int withEphemeris;
+    private long elapsedRealtimeNanos;
+    private boolean hasStatus;
+
+    // Totals, computed in end()
+    private int totalVisible;
+    private int totalUsed;
+    private double meanCn0;
+    private double meanTopCn0;
+
+    void begin() {
+        for (int i = 0; i < CONSTELLATION_COUNT; i++) {
+            visible[i] = 0;
+            used[i] = 0;
+            cn0Sums[i] = 0;
+            cn0Counts[i] = 0;
+        }
+        topCount = 0;
+        withAlmanac = 0;
+        withEphemeris = 0;
+    }
+
+    void addSatellite(int constellation, float cn0DbHz, boolean usedInFix, boolean hasAlmanac,
+                      boolean hasEphemeris) {
+        if (constellation < 0 || constellation >= CONSTELLATION_COUNT) {
+            constellation = 0;
+        }
+        visible[constellation]++;
+        if (usedInFix) {
+            used[constellation]++;
+        }
+        if (cn0DbHz > 0) {
+            cn0Sums[constellation] += cn0DbHz;
+            cn0Counts[constellation]++;
+            insertTop(cn0DbHz);
+        }
+        if (hasAlmanac) {
+            withAlmanac++;
+        }
+        if (hasEphemeris) {
+            withEphemeris++;
+        }
+    }
+
+    void end(long elapsedRealtimeNanos) {
+        this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+        hasStatus = true;
+
+        totalVisible = 0;
+        totalUsed = 0;
+        double sum = 0;
+        int count = 0;
+        for (int i = 0; i < CONSTELLATION_COUNT; i++) {
+            totalVisible += visible[i];
+            totalUsed += used[i];
+            sum += cn0Sums[i];
+            count += cn0Counts[i];
+        }
+        meanCn0 = count > 0 ? sum / count : 0;
+
+        double topSum = 0;
+        for (int i = 0; i < topCount; i++) {
+            topSum += topCn0[i];
+        }
+        meanTopCn0 = topCount > 0 ? topSum / topCount : 0;
+    }
+
+    void reset() {
+        begin();
+        hasStatus = false;
+    }
+
+    boolean hasStatus() {
+        return hasStatus;
+    }
+
+    int getUsed() {
+        return totalUsed;
+    }
+
+    int getVisible() {
+        return totalVisible;
+    }
+
+    double getMeanCn0() {
+        return meanCn0;
+    }
+
+    double getMeanTopCn0() {
+        return meanTopCn0;
+    }
+
+    long getElapsedRealtimeNanos() {
+        return elapsedRealtimeNanos;
+    }
+
+    /** Builds the summary sent to Dart; only constellations with satellites are listed. */
+    HashMap<String, Object> toMap() {
+        HashMap<String, Object> summary = new HashMap<>();
+        summary.put("visible", totalVisible);
+        summary.put("used", totalUsed);
+        summary.put("meanCn0", meanCn0);
+        summary.put("top4Cn0", meanTopCn0);
+        summary.put("withAlmanac", withAlmanac);
+        summary.put("withEphemeris", withEphemeris);
+        summary.put("elapsedRealtimeNanos", (double) elapsedRealtimeNanos);
+
+        HashMap<String, Object> constellations = new HashMap<>();
+        for (int i = 0; i < CONSTELLATION_COUNT; i++) {
+            if (visible[i] == 0) {
+                continue;
+            }
+            HashMap<String, Object> constellation = new HashMap<>();
+            constellation.put("visible", visible[i]);
+            constellation.put("used", used[i]);
+            constellation.put("meanCn0", cn0Counts[i] > 0 ? cn0Sums[i] / cn0Counts[i] : 0.0);
+            constellations.put(CONSTELLATION_NAMES[i], constellation);
+        }
+        summary.put("constellations", constellations);
+        return summary;
+    }
+
+    private void insertTop(float cn0) {
+        if (topCount == TOP_COUNT && cn0 <= topCn0[TOP_COUNT - 1]) {
+            return;
+        }
+        int i = topCount < TOP_COUNT ? topCount++ : TOP_COUNT - 1;
+        while (i > 0 && topCn0[i - 1] < cn0) {
+            topCn0[i] = topCn0[i - 1];
+            i--;
+        }
+        topCn0[i] = cn0;
+    }
+}
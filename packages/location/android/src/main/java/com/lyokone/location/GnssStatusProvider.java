@@ -0,0 +1,75 @@
+package com.lyokone.location;
+
+import android.annotation.SuppressLint;
+import android.location.GnssStatus;
+import android.location.LocationManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.RequiresApi;
+
+/**
+ * Feeds {@link GnssStatus} reports into a {@link GnssAggregator} and hands
+ * the aggregated status to a listener after each report.
+ */
+@RequiresApi(Build.VERSION_CODES.N)
+final class GnssStatusProvider {
+    interface Listener {
+        void onStatus(GnssAggregator aggregator);
+    }
+
+    private final LocationManager locationManager;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final GnssAggregator aggregator = new GnssAggregator();
+    private final Listener listener;
+    // Started and stopped under the owner's lock, from any thread. The aggregator
+    // is only touched on the main looper.
+    private boolean running;
+
+    private final GnssStatus.Callback callback = new GnssStatus.Callback() {
+        @Override
+        public void onSatelliteStatusChanged(GnssStatus status) {
+            aggregator.begin();
+            for (int i = 0; i < status.getSatelliteCount(); i++) {
+                aggregator.addSatellite(status.getConstellationType(i), status.getCn0DbHz(i),
+                        status.usedInFix(i), status.hasAlmanacData(i), status.hasEphemerisData(i));
+            }
+            aggregator.end(SystemClock.elapsedRealtimeNanos());
+            listener.onStatus(aggregator);
+        }
+
+        @Override
+        public void onStopped() {
+            aggregator.reset();
+        }
+    };
+
+    GnssStatusProvider(LocationManager locationManager, Listener listener) {
+        this.locationManager = locationManager;
+        this.listener = listener;
+    }
+
+    GnssAggregator getAggregator() {
+        return aggregator;
+    }
+
+    // Only started once the fine location permission is granted
+    @SuppressLint("MissingPermission")
+    void start() {
+        if (running) {
+            return;
+        }
+        running = locationManager.registerGnssStatusCallback(callback, handler);
+    }
+
+    void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        locationManager.unregisterGnssStatusCallback(callback);
+        handler.post(aggregator::reset);
+    }
+}
@@ -0,0 +1,271 @@
+package com.lyokone.location
+
+import android.location.Location
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import java.text.NumberFormat
+
+/**
+ * Running figures of the current tracking session, updated from each fix.
+ */
+class LiveTrackingState(
+    private val destinationLatitude: Double? = null,
+    private val destinationLongitude: Double? = null,
+) {
+    companion object {
+        // Slowest walking speed in m/s
+        private const val MIN_MOVING_SPEED = 0.5
+    }
+
+    var latitude = 0.0
+        private set
+    var longitude = 0.0
+        private set
+    var altitude = 0.0
+        private set
+    var accuracy = 0.0
+        private set
+    var speed = 0.0
+        private set
+    var distanceMeters = 0.0
+        private set
+    var elapsedMillis = 0L
+        private set
+
+    private var hasFix = false
+    private var startMillis = 0L
+    private var movingMillis = 0L
+
+    // Where the last counted step ended, steps are measured from here so that
+    // moves shorter than the accuracy between two fixes still add up
+    private var anchorLatitude = 0.0
+    private var anchorLongitude = 0.0
+    private var anchorMillis = 0L
+
+    fun onFix(
+        latitude: Double,
+        longitude: Double,
+        altitude: Double,
+        accuracy: Double,
+        speed: Double,
+        timeMillis: Long,
+    ) {
+        if (hasFix) {
+            val step = DeadReckoning.distanceMeters(anchorLatitude, anchorLongitude, latitude, longitude)
+            // Ignore jitter within the accuracy radius while standing still
+            if (step > accuracy) {
+                distanceMeters += step
+                // A step after a stop only counts the time it takes at a slow walk
+                val slowestMillis = (step * 1000 / MIN_MOVING_SPEED).toLong()
+                movingMillis += minOf(timeMillis - anchorMillis, slowestMillis)
+                setAnchor(latitude, longitude, timeMillis)
+            }
+        } else {
+            hasFix = true
+            startMillis = timeMillis
+            setAnchor(latitude, longitude, timeMillis)
+        }
+        this.latitude = latitude
+        this.longitude = longitude
+        this.altitude = altitude
+        this.accuracy = accuracy
+        this.speed = speed
+        elapsedMillis = timeMillis - startMillis
+    }
+
+    private fun setAnchor(latitude: Double, longitude: Double, timeMillis: Long) {
+        anchorLatitude = latitude
+        anchorLongitude = longitude
+        anchorMillis = timeMillis
+    }
+
+    /** Straight line distance to the destination, or null without one. */
+    fun remainingMeters(): Double? {
+        if (!hasFix || destinationLatitude == null || destinationLongitude == null) {
+            return null
+        }
+        return DeadReckoning.distanceMeters(latitude, longitude, destinationLatitude, destinationLongitude)
+    }
+
+    /** Time to the destination at the average moving speed so far, or null if unknown. */
+    fun etaMillis(): Long? {
+        val remaining = remainingMeters() ?: return null
+        if (movingMillis <= 0 || distanceMeters <= 0) {
+            return null
+        }
+        return (remaining / (distanceMeters / movingMillis)).toLong()
+    }
+}
+
+/**
+ * A notification text with `{placeholder}`s filled from a [LiveTrackingState].
+ *
+ * Supported placeholders are `speed` (km/h), `distance` and `remaining` (km),
+ * `accuracy` and `altitude` (m), `latitude`, `longitude`, `elapsed` and `eta`.
+ * Unknown placeholders are left as they are. The template is parsed once.
+ */
+class LiveNotificationTemplate(template: String) {
+    private val literals = ArrayList<String>()
+    private val placeholders = ArrayList<String>()
+
+    init {
+        var start = 0
+        while (true) {
+            val open = template.indexOf('{', start)
+            val close = if (open >= 0) template.indexOf('}', open) else -1
+            if (close < 0) {
+                literals.add(template.substring(start))
+                break
+            }
+            literals.add(template.substring(start, open))
+            placeholders.add(template.substring(open + 1, close))
+            start = close + 1
+        }
+    }
+
+    fun render(state: LiveTrackingState, out: StringBuilder): StringBuilder {
+        out.setLength(0)
+        for (i in placeholders.indices) {
+            out.append(literals[i])
+            appendValue(placeholders[i], state, out)
+        }
+        out.append(literals[placeholders.size])
+        return out
+    }
+
+    private fun appendValue(name: String, state: LiveTrackingState, out: StringBuilder) {
+        when (name) {
+            "speed" -> out.append(wholeNumber.format(state.speed * 3.6))
+            "distance" -> out.append(oneDecimal.format(state.distanceMeters / 1000))
+            "remaining" -> state.remainingMeters()?.let { out.append(oneDecimal.format(it / 1000)) }
+            "accuracy" -> out.append(wholeNumber.format(state.accuracy))
+            "altitude" -> out.append(wholeNumber.format(state.altitude))
+            "latitude" -> out.append(coordinate.format(state.latitude))
+            "longitude" -> out.append(coordinate.format(state.longitude))
+            "elapsed" -> appendDuration(state.elapsedMillis, out)
+            "eta" -> state.etaMillis()?.let { appendDuration(it, out) }
+            else -> out.append('{').append(name).append('}')
+        }
+    }
+
+    private fun appendDuration(millis: Long, out: StringBuilder) {
+        val seconds = millis / 1000
+        val minutes = (seconds / 60) % 60
+        out.append(seconds / 3600).append(':')
+        if (minutes < 10) out.append('0')
+        out.append(minutes).append(':')
+        if (seconds % 60 < 10) out.append('0')
+        out.append(seconds % 60)
+    }
+
+    private companion object {
+        val wholeNumber: NumberFormat = NumberFormat.getNumberInstance().apply {
+            maximumFractionDigits = 0
+        }
+        val oneDecimal: NumberFormat = NumberFormat.getNumberInstance().apply {
+            minimumFractionDigits = 1
+            maximumFractionDigits = 1
+        }
+        val coordinate: NumberFormat = NumberFormat.getNumberInstance().apply {
+            minimumFractionDigits = 5
+            maximumFractionDigits = 5
+            isGroupingUsed = false
+        }
+    }
+}
+
+/**
+ * Drives the texts of a [BackgroundNotification] from the fix pipeline.
+ *
+ * Each fix is rendered, but the notification is only re-posted when the
+ * rendered texts changed, and at most once every [minIntervalMillis]. A
+ * change arriving sooner is posted when the interval runs out.
+ */
+class LiveNotification(
+    private val notification: BackgroundNotification,
+    private val title: LiveNotificationTemplate?,
+    private val text: LiveNotificationTemplate?,
+    private val subText: LiveNotificationTemplate?,
+    private val minIntervalMillis: Long,
+    private val state: LiveTrackingState,
+) : FlutterLocation.FixListener {
+    private val handler = Handler(Looper.getMainLooper())
+    private val titleBuffer = StringBuilder()
+    private val textBuffer = StringBuilder()
+    private val subTextBuffer = StringBuilder()
+    private var postedTitle: String? = null
+    private var postedText: String? = null
+    private var postedSubText: String? = null
+    private var lastPostMillis = 0L
+    private var hasPendingPost = false
+
+    /** Whether the notification is currently shown, nothing is posted otherwise. */
+    var isVisible = false
+
+    private val delayedPost = Runnable {
+        hasPendingPost = false
+        post()
+    }
+
+    override fun onFix(location: Location) {
+        state.onFix(
+            location.latitude,
+            location.longitude,
+            location.altitude,
+            location.accuracy.toDouble(),
+            location.speed.toDouble(),
+            location.time,
+        )
+        if (!isVisible || hasPendingPost) {
+            return
+        }
+        val wait = lastPostMillis + minIntervalMillis - SystemClock.elapsedRealtime()
+        if (wait > 0) {
+            hasPendingPost = true
+            handler.postDelayed(delayedPost, wait)
+        } else {
+            post()
+        }
+    }
+
+    /** Forgets what was posted, e.g. after the notification options changed. */
+    fun invalidate() {
+        postedTitle = null
+        postedText = null
+        postedSubText = null
+    }
+
+    fun stop() {
+        handler.removeCallbacks(delayedPost)
+        hasPendingPost = false
+    }
+
+    private fun post() {
+        if (!isVisible) {
+            return
+        }
+        // Compare against the last posted texts before allocating new strings
+        val renderedTitle = title?.render(state, titleBuffer)
+        val renderedText = text?.render(state, textBuffer)
+        val renderedSubText = subText?.render(state, subTextBuffer)
+        if (sameAs(renderedTitle, postedTitle) &&
+            sameAs(renderedText, postedText) &&
+            sameAs(renderedSubText, postedSubText)
+        ) {
+            return
+        }
+        postedTitle = renderedTitle?.toString()
+        postedText = renderedText?.toString()
+        postedSubText = renderedSubText?.toString()
+        lastPostMillis = SystemClock.elapsedRealtime()
+        notification.updateContent(postedTitle, postedText, postedSubText, true)
+    }
+
+    private fun sameAs(rendered: CharSequence?, posted: String?): Boolean {
+        if (rendered == null || posted == null) {
+            return rendered == null && posted == null
+        }
+        return posted.contentEquals(rendered)
+    }
+}
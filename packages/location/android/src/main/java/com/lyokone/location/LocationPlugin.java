@@ -5,13 +5,12 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.IBinder;
+import android.os.Trace;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import io.flutter.embedding.engine.FlutterEngine;
-import io.flutter.embedding.engine.FlutterEngineCache;
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
 
 /**
@@ -24,56 +23,75 @@ public class LocationPlugin implements FlutterPlugin {
     @Nullable
     private StreamHandlerImpl streamHandlerImpl;
     @Nullable
+    private PipelineStreamHandlerImpl pipelineStreamHandler;
+    @Nullable
     private FlutterLocationService locationService;
     @Nullable
     private Context context;
+    private boolean serviceBound;
 
     @Override
     public void onAttachedToEngine(@NonNull FlutterPluginBinding binding) {
-        // Only initialize if the shared engine is being used
-        FlutterEngine flutterEngine = FlutterEngineCache.getInstance().get("SharedEngine");
-        if (flutterEngine != null && flutterEngine == binding.getFlutterEngine()) {
-            if (context == null) {
-                context = binding.getApplicationContext();
-
-                if (methodCallHandler == null) {
-                    methodCallHandler = new MethodCallHandlerImpl();
-                    methodCallHandler.setContext(context);
-                    methodCallHandler.startListening(binding.getBinaryMessenger());
-                }
-
-                if (streamHandlerImpl == null) {
-                    streamHandlerImpl = new StreamHandlerImpl();
-                    streamHandlerImpl.startListening(binding.getBinaryMessenger());
-                }
-
-                // Bind to the location service
-                context.bindService(new Intent(context, FlutterLocationService.class), serviceConnection, Context.BIND_AUTO_CREATE);
-            }
+        // Every engine gets its own instance and channels, all of them share the
+        // session owned by the location service. Only channels are registered
+        // here, the location service is bound on first use.
+        Trace.beginSection("LocationPlugin#onAttachedToEngine");
+        context = binding.getApplicationContext();
+
+        methodCallHandler = new MethodCallHandlerImpl();
+        methodCallHandler.setContext(context);
+        methodCallHandler.setOnServiceNeeded(this::bindLocationService);
+        methodCallHandler.startListening(binding.getBinaryMessenger());
+
+        streamHandlerImpl = new StreamHandlerImpl();
+        streamHandlerImpl.setOnServiceNeeded(this::bindLocationService);
+        streamHandlerImpl.startListening(binding.getBinaryMessenger());
+
+        pipelineStreamHandler = new PipelineStreamHandlerImpl();
+        pipelineStreamHandler.setOnServiceNeeded(this::bindLocationService);
+        pipelineStreamHandler.startListening(binding.getBinaryMessenger());
+        Trace.endSection();
+    }
+
+    private void bindLocationService() {
+        if (serviceBound || context == null) {
+            return;
         }
+        Trace.beginSection("LocationPlugin#bindLocationService");
+        serviceBound = context.bindService(new Intent(context, FlutterLocationService.class), serviceConnection,
+                Context.BIND_AUTO_CREATE);
+        Trace.endSection();
     }
 
     @Override
     public void onDetachedFromEngine(@NonNull FlutterPluginBinding binding) {
         if (methodCallHandler != null) {
+            methodCallHandler.stopListening();
             methodCallHandler.setLocationService(null);
             methodCallHandler.setLocation(null);
-            methodCallHandler.stopListening();
             methodCallHandler = null;
         }
 
+        // Stop listening first so this engine's sinks leave the shared session
         if (streamHandlerImpl != null) {
-            streamHandlerImpl.setLocation(null);
             streamHandlerImpl.stopListening();
+            streamHandlerImpl.setLocation(null);
             streamHandlerImpl = null;
         }
 
-        if (context != null && locationService != null) {
+        if (pipelineStreamHandler != null) {
+            pipelineStreamHandler.stopListening();
+            pipelineStreamHandler.setLocation(null);
+            pipelineStreamHandler = null;
+        }
+
+        // The service outlives this engine as long as another one is bound to it
+        if (context != null && serviceBound) {
             context.unbindService(serviceConnection);
-            locationService.setContext(null);
-            locationService = null;
-            context = null;
+            serviceBound = false;
         }
+        locationService = null;
+        context = null;
     }
 
     private final ServiceConnection serviceConnection = new ServiceConnection() {
@@ -104,6 +122,10 @@ public class LocationPlugin implements FlutterPlugin {
         if (streamHandlerImpl != null) {
             streamHandlerImpl.setLocation(locationService.getLocation());
         }
+
+        if (pipelineStreamHandler != null) {
+            pipelineStreamHandler.setLocation(locationService.getLocation());
+        }
     }
 
 }
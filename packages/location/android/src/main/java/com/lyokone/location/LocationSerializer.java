@@ -0,0 +1,220 @@
+package com.lyokone.location;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import android.annotation.SuppressLint;
+import android.location.Location;
+import android.os.Build;
+import android.os.Bundle;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Converts a {@link Location} into the map sent to Dart, writing only the
+ * fields selected by a mask.
+ * <p>
+ * The field and SDK level checks are resolved once when the serializer is
+ * built, leaving an array of writers to run for every fix.
+ */
+final class LocationSerializer {
+    static final int LATITUDE = 1;
+    static final int LONGITUDE = 1 << 1;
+    static final int ACCURACY = 1 << 2;
+    static final int VERTICAL_ACCURACY = 1 << 3;
+    static final int HEADING_ACCURACY = 1 << 4;
+    static final int ELAPSED_REALTIME_UNCERTAINTY_NANOS = 1 << 5;
+    static final int PROVIDER = 1 << 6;
+    static final int SATELLITE_NUMBER = 1 << 7;
+    static final int ELAPSED_REALTIME_NANOS = 1 << 8;
+    static final int IS_MOCK = 1 << 9;
+    static final int ALTITUDE = 1 << 10;
+    static final int SPEED = 1 << 11;
+    static final int SPEED_ACCURACY = 1 << 12;
+    static final int HEADING = 1 << 13;
+    static final int TIME = 1 << 14;
+
+    static final int ALL_FIELDS = (1 << 15) - 1;
+
+    private static final String[] FIELD_NAMES = {
+            "latitude",
+            "longitude",
+            "accuracy",
+            "verticalAccuracy",
+            "headingAccuracy",
+            "elapsedRealtimeUncertaintyNanos",
+            "provider",
+            "satelliteNumber",
+            "elapsedRealtimeNanos",
+            "isMock",
+            "altitude",
+            "speed",
+            "speed_accuracy",
+            "heading",
+            "time",
+    };
+
+    private interface FieldWriter {
+        void write(Location location, HashMap<String, Object> map, @Nullable Double mslAltitude);
+    }
+
+    private final int mask;
+    private final FieldWriter[] writers;
+    private final int mapCapacity;
+
+    private LocationSerializer(int mask, FieldWriter[] writers) {
+        this.mask = mask;
+        this.writers = writers;
+        // Large enough that the map never rehashes
+        this.mapCapacity = (int) (writers.length / 0.75f) + 1;
+    }
+
+    int getMask() {
+        return mask;
+    }
+
+    HashMap<String, Object> serialize(Location location, @Nullable Double mslAltitude) {
+        HashMap<String, Object> map = new HashMap<>(mapCapacity);
+        for (FieldWriter writer : writers) {
+            writer.write(location, map, mslAltitude);
+        }
+        return map;
+    }
+
+    /**
+     * Converts a dead reckoning estimate, which has fewer fields than a fix.
+     * Its {@code confidence} goes with the accuracy.
+     */
+    HashMap<String, Object> serialize(DeadReckoning.Estimate estimate, long timeMillis) {
+        HashMap<String, Object> map = new HashMap<>(mapCapacity);
+        if ((mask & LATITUDE) != 0) {
+            map.put("latitude", estimate.latitude);
+        }
+        if ((mask & LONGITUDE) != 0) {
+            map.put("longitude", estimate.longitude);
+        }
+        if ((mask & ACCURACY) != 0) {
+            map.put("accuracy", estimate.accuracy);
+            map.put("confidence", estimate.confidence);
+        }
+        if ((mask & PROVIDER) != 0) {
+            map.put("provider", "dead_reckoning");
+        }
+        if ((mask & ELAPSED_REALTIME_NANOS) != 0) {
+            map.put("elapsedRealtimeNanos", (double) estimate.elapsedRealtimeNanos);
+        }
+        if ((mask & IS_MOCK) != 0) {
+            map.put("isMock", (double) 0);
+        }
+        if ((mask & SPEED) != 0) {
+            map.put("speed", estimate.speed);
+        }
+        if ((mask & HEADING) != 0) {
+            map.put("heading", estimate.heading);
+        }
+        if ((mask & TIME) != 0) {
+            map.put("time", (double) timeMillis);
+        }
+        return map;
+    }
+
+    /**
+     * Parses a list of field names, using the keys of the serialized map, into
+     * a mask. Null selects every field.
+     */
+    static int parseMask(@Nullable List<?> fieldNames) {
+        if (fieldNames == null) {
+            return ALL_FIELDS;
+        }
+        int mask = 0;
+        for (Object name : fieldNames) {
+            boolean found = false;
+            for (int i = 0; i < FIELD_NAMES.length; i++) {
+                if (FIELD_NAMES[i].equals(name)) {
+                    mask |= 1 << i;
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                throw new IllegalArgumentException("Unknown location field: " + name);
+            }
+        }
+        return mask;
+    }
+
+    // Each writer is only added when sdkInt allows it
+    @SuppressLint("NewApi")
+    static LocationSerializer create(int mask, int sdkInt) {
+        List<FieldWriter> writers = new ArrayList<>();
+        if ((mask & LATITUDE) != 0) {
+            writers.add((location, map, msl) -> map.put("latitude", location.getLatitude()));
+        }
+        if ((mask & LONGITUDE) != 0) {
+            writers.add((location, map, msl) -> map.put("longitude", location.getLongitude()));
+        }
+        if ((mask & ACCURACY) != 0) {
+            writers.add((location, map, msl) -> map.put("accuracy", (double) location.getAccuracy()));
+        }
+        if (sdkInt >= Build.VERSION_CODES.O) {
+            if ((mask & VERTICAL_ACCURACY) != 0) {
+                writers.add((location, map, msl) ->
+                        map.put("verticalAccuracy", (double) location.getVerticalAccuracyMeters()));
+            }
+            if ((mask & HEADING_ACCURACY) != 0) {
+                writers.add((location, map, msl) ->
+                        map.put("headingAccuracy", (double) location.getBearingAccuracyDegrees()));
+            }
+        }
+        if (sdkInt >= Build.VERSION_CODES.Q && (mask & ELAPSED_REALTIME_UNCERTAINTY_NANOS) != 0) {
+            writers.add((location, map, msl) ->
+                    map.put("elapsedRealtimeUncertaintyNanos", location.getElapsedRealtimeUncertaintyNanos()));
+        }
+        if ((mask & PROVIDER) != 0) {
+            writers.add((location, map, msl) -> map.put("provider", location.getProvider()));
+        }
+        if ((mask & SATELLITE_NUMBER) != 0) {
+            writers.add((location, map, msl) -> {
+                final Bundle extras = location.getExtras();
+                if (extras != null) {
+                    map.put("satelliteNumber", extras.getInt("satellites"));
+                }
+            });
+        }
+        if ((mask & ELAPSED_REALTIME_NANOS) != 0) {
+            writers.add((location, map, msl) ->
+                    map.put("elapsedRealtimeNanos", (double) location.getElapsedRealtimeNanos()));
+        }
+        if ((mask & IS_MOCK) != 0) {
+            writers.add((location, map, msl) -> {
+                if (location.isFromMockProvider()) {
+                    map.put("isMock", (double) 1);
+                }
+            });
+        }
+        if ((mask & ALTITUDE) != 0) {
+            // Using NMEA Data to get MSL level altitude
+            if (sdkInt >= Build.VERSION_CODES.N) {
+                writers.add((location, map, msl) ->
+                        map.put("altitude", msl != null ? msl : location.getAltitude()));
+            } else {
+                writers.add((location, map, msl) -> map.put("altitude", location.getAltitude()));
+            }
+        }
+        if ((mask & SPEED) != 0) {
+            writers.add((location, map, msl) -> map.put("speed", (double) location.getSpeed()));
+        }
+        if (sdkInt >= Build.VERSION_CODES.O && (mask & SPEED_ACCURACY) != 0) {
+            writers.add((location, map, msl) ->
+                    map.put("speed_accuracy", (double) location.getSpeedAccuracyMetersPerSecond()));
+        }
+        if ((mask & HEADING) != 0) {
+            writers.add((location, map, msl) -> map.put("heading", (double) location.getBearing()));
+        }
+        if ((mask & TIME) != 0) {
+            writers.add((location, map, msl) -> map.put("time", (double) location.getTime()));
+        }
+        return new LocationSerializer(mask, writers.toArray(new FieldWriter[0]));
+    }
+}
@@ -0,0 +1,383 @@
+package com.lyokone.location;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Batches fixes and POSTs them to an HTTP endpoint from a background thread.
+ * <p>
+ * A batch is cut when it reaches {@code maxBatchSize} fixes or its oldest fix
+ * is {@code maxBatchAgeMillis} old. It is then gzipped {@link FixBatch}
+ * encoding and written to the spool directory before any upload attempt, so
+ * it survives the process. Spooled batches are sent oldest first; failures
+ * are retried with exponential backoff, and the oldest batches are dropped
+ * once the spool exceeds {@code maxSpoolBytes}.
+ * <p>
+ * Only one uploader at a time works on a spool directory: a new one waits,
+ * on its own thread, for the one closed before it to spool its last batch.
+ * <p>
+ * Only the JDK is used, so it can run against a local HTTP server on the JVM.
+ */
+public final class LocationUploader {
+    private static final String SPOOL_PREFIX = "batch-";
+    private static final String SPOOL_SUFFIX = ".bin";
+    private static final int TIMEOUT_MILLIS = 30_000;
+
+    // Spool directories owned by an uploader, so no batch is ever posted twice
+    private static final HashSet<String> ownedSpools = new HashSet<>();
+
+    public static final class Config {
+        URL endpoint;
+        Map<String, String> headers = new HashMap<>();
+        int maxBatchSize = 100;
+        long maxBatchAgeMillis = 60_000;
+        long maxSpoolBytes = 5L * 1024 * 1024;
+        long initialBackoffMillis = 5_000;
+        long maxBackoffMillis = 15 * 60_000;
+    }
+
+    private final Config config;
+    private final File spoolDirectory;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Random random = new Random();
+
+    // Guarded by this
+    private FixBatch batch;
+    private long batchStartMillis;
+    private int batchGeneration;
+    private long sequence;
+
+    // Written under this, read from the executor thread to stop sending early
+    private volatile boolean closed;
+
+    // Only touched from the executor thread
+    private int consecutiveFailures;
+    private ScheduledFuture<?> retry;
+
+    // Written from the executor thread, read from anywhere for getState
+    private volatile long uploadedBatches;
+    private volatile long uploadedFixes;
+    private volatile long uploadedBytes;
+    private volatile long failedAttempts;
+    private volatile long droppedBatches;
+    private volatile long lastSuccessMillis;
+    private volatile long nextRetryMillis;
+    private volatile String lastError;
+
+    LocationUploader(Config config, File spoolDirectory) {
+        this.config = config;
+        this.spoolDirectory = spoolDirectory;
+        this.batch = new FixBatch(config.maxBatchSize);
+        this.executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "LocationUploader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Pending retries and age timers are moot once closed, the spool keeps the data
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        executor.execute(() -> {
+            acquireSpool(spoolDirectory.getAbsolutePath());
+            if (!spoolDirectory.isDirectory() && !spoolDirectory.mkdirs()) {
+                lastError = "Could not create spool directory " + spoolDirectory;
+            }
+            // Pick up whatever a previous uploader or process left behind
+            sendSpooled();
+        });
+    }
+
+    void onFix(long timeMillis, double latitude, double longitude, double altitude, double accuracy,
+               double speed, double bearing) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (batch.size() == 0) {
+                batchStartMillis = System.currentTimeMillis();
+                final int generation = batchGeneration;
+                executor.schedule(() -> {
+                    Runnable spool;
+                    synchronized (this) {
+                        spool = generation == batchGeneration ? cutBatch() : null;
+                    }
+                    if (spool != null) {
+                        spool.run();
+                    }
+                }, config.maxBatchAgeMillis, TimeUnit.MILLISECONDS);
+            }
+            batch.add(timeMillis, latitude, longitude, altitude, accuracy, speed, bearing);
+            if (batch.size() >= config.maxBatchSize) {
+                executor.execute(cutBatch());
+            }
+        }
+    }
+
+    /** Spools the pending fixes and tries to send everything right away. */
+    void flush() {
+        final Runnable spool;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            spool = cutBatch();
+        }
+        executor.execute(() -> {
+            if (retry != null) {
+                retry.cancel(false);
+                retry = null;
+            }
+            if (spool != null) {
+                spool.run();
+            } else {
+                sendSpooled();
+            }
+        });
+    }
+
+    /**
+     * Spools the pending fixes and stops the worker thread once it is done,
+     * without waiting for it. The spool is handed over to the next uploader.
+     */
+    void close() {
+        final Runnable spool;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            spool = cutBatch();
+        }
+        executor.execute(() -> {
+            try {
+                if (spool != null) {
+                    spool.run();
+                }
+            } finally {
+                if (retry != null) {
+                    retry.cancel(false);
+                    retry = null;
+                }
+                releaseSpool(spoolDirectory.getAbsolutePath());
+                // Only from the worker itself, so no spool task still queued is dropped
+                executor.shutdown();
+            }
+        });
+    }
+
+    Map<String, Object> getState() {
+        HashMap<String, Object> state = new HashMap<>();
+        synchronized (this) {
+            state.put("pendingFixes", batch.size());
+        }
+        File[] spooled = listSpool();
+        long spooledBytes = 0;
+        for (File file : spooled) {
+            spooledBytes += file.length();
+        }
+        state.put("spooledBatches", spooled.length);
+        state.put("spooledBytes", (double) spooledBytes);
+        state.put("uploadedBatches", (double) uploadedBatches);
+        state.put("uploadedFixes", (double) uploadedFixes);
+        state.put("uploadedBytes", (double) uploadedBytes);
+        state.put("failedAttempts", (double) failedAttempts);
+        state.put("droppedBatches", (double) droppedBatches);
+        state.put("lastSuccessTime", lastSuccessMillis > 0 ? (double) lastSuccessMillis : null);
+        state.put("nextRetryTime", nextRetryMillis > 0 ? (double) nextRetryMillis : null);
+        state.put("lastError", lastError);
+        return state;
+    }
+
+    /**
+     * Starts a new batch and returns the executor task that moves the current
+     * one to the spool, or null if it is empty. Must hold this, so no batch
+     * ever grows past {@code maxBatchSize}.
+     */
+    private Runnable cutBatch() {
+        if (batch.size() == 0) {
+            return null;
+        }
+        final FixBatch full = batch;
+        final File file = new File(spoolDirectory,
+                String.format(Locale.ROOT, "%s%013d-%06d-%d%s", SPOOL_PREFIX, batchStartMillis,
+                        sequence++ % 1_000_000, full.size(), SPOOL_SUFFIX));
+        batch = new FixBatch(config.maxBatchSize);
+        batchGeneration++;
+
+        return () -> {
+            try (OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                full.encode(out);
+            } catch (IOException e) {
+                lastError = "Could not spool batch: " + e.getMessage();
+                file.delete();
+                return;
+            }
+            trimSpool();
+            if (retry == null && !closed) {
+                sendSpooled();
+            }
+        };
+    }
+
+    private void sendSpooled() {
+        retry = null;
+        nextRetryMillis = 0;
+        for (File file : listSpool()) {
+            if (closed) {
+                return;
+            }
+            int status;
+            try {
+                status = post(file);
+            } catch (IOException e) {
+                onFailure(e.toString());
+                return;
+            }
+            if (status >= 200 && status < 300) {
+                consecutiveFailures = 0;
+                uploadedBatches++;
+                uploadedFixes += fixCount(file);
+                uploadedBytes += file.length();
+                lastSuccessMillis = System.currentTimeMillis();
+                file.delete();
+            } else if (status >= 400 && status < 500 && status != 408 && status != 429) {
+                // The server will never accept this batch, retrying would block the spool
+                lastError = "Batch rejected with HTTP " + status;
+                droppedBatches++;
+                file.delete();
+            } else {
+                onFailure("HTTP " + status);
+                return;
+            }
+        }
+    }
+
+    private void onFailure(String error) {
+        failedAttempts++;
+        lastError = error;
+        long backoff = config.initialBackoffMillis << Math.min(consecutiveFailures, 20);
+        backoff = Math.min(backoff, config.maxBackoffMillis);
+        // Up to 20% of jitter so many devices don't retry in lockstep
+        backoff += (long) (backoff * 0.2 * random.nextDouble());
+        consecutiveFailures++;
+        nextRetryMillis = System.currentTimeMillis() + backoff;
+        retry = executor.schedule(this::sendSpooled, backoff, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * HttpURLConnection keeps the underlying socket alive and reuses it for
+     * the next request as long as the response body is fully read and closed.
+     */
+    private int post(File file) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) config.endpoint.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setFixedLengthStreamingMode(file.length());
+            connection.setRequestProperty("Content-Type", "application/x-location-batch");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            for (Map.Entry<String, String> header : config.headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            byte[] buffer = new byte[8192];
+            try (InputStream in = new FileInputStream(file);
+                 OutputStream out = connection.getOutputStream()) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+
+            int status = connection.getResponseCode();
+            InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (body != null) {
+                try (InputStream in = body) {
+                    while (in.read(buffer) != -1) {
+                        // Drain so the connection can be reused
+                    }
+                }
+            }
+            return status;
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    /** Deletes the oldest batches until the spool fits in its budget. */
+    private void trimSpool() {
+        File[] spooled = listSpool();
+        long total = 0;
+        for (File file : spooled) {
+            total += file.length();
+        }
+        for (int i = 0; i < spooled.length - 1 && total > config.maxSpoolBytes; i++) {
+            total -= spooled[i].length();
+            if (spooled[i].delete()) {
+                droppedBatches++;
+            }
+        }
+    }
+
+    private File[] listSpool() {
+        File[] files = spoolDirectory.listFiles(
+                (dir, name) -> name.startsWith(SPOOL_PREFIX) && name.endsWith(SPOOL_SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static void acquireSpool(String path) {
+        boolean interrupted = false;
+        synchronized (ownedSpools) {
+            while (!ownedSpools.add(path)) {
+                try {
+                    ownedSpools.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void releaseSpool(String path) {
+        synchronized (ownedSpools) {
+            ownedSpools.remove(path);
+            ownedSpools.notifyAll();
+        }
+    }
+
+    private static int fixCount(File file) {
+        String name = file.getName();
+        int start = name.lastIndexOf('-') + 1;
+        int end = name.length() - SPOOL_SUFFIX.length();
+        try {
+            return Integer.parseInt(name.substring(start, end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.lyokone.location;
+
+/**
+ * Snaps fixes to {@link RoadSegments} with an incremental hidden Markov
+ * model matcher.
+ * <p>
+ * The candidates of a fix are the closest segments within the search radius,
+ * each projected onto the segment. Emission scores are Gaussian in the
+ * distance to the projection, with the fix accuracy as deviation. Transition
+ * scores are exponential in the difference between the distance travelled
+ * between fixes and between projections, with a penalty for jumping to a
+ * segment that is not connected to the previous one. Each fix runs one
+ * Viterbi step over the scores of the previous one, and the best candidate is
+ * reported right away. A fix without candidates, or after a long gap, starts
+ * a new chain.
+ * <p>
+ * All state lives in preallocated arrays. It is not thread safe.
+ */
+final class MapMatcher {
+    private final RoadSegments segments;
+    private final double searchRadiusMeters;
+    private final int maxCandidates;
+    private final double minSigmaMeters;
+    private final double betaMeters;
+    private final double disconnectedPenalty;
+    private final long maxGapMillis;
+
+    // Candidates of the current fix, ordered by distance
+    private int count;
+    private final int[] segment;
+    private final double[] distance;
+    private final double[] latitude;
+    private final double[] longitude;
+    private final double[] score;
+
+    // Candidates of the previous fix
+    private int previousCount;
+    private int[] previousSegment;
+    private double[] previousLatitude;
+    private double[] previousLongitude;
+    private double[] previousScore;
+    private double previousFixLatitude;
+    private double previousFixLongitude;
+    private long previousTimeMillis;
+
+    // Scratch of the projection done for each queried segment
+    private double fixLatitude;
+    private double fixLongitude;
+    private double metersPerDegreeLongitude;
+
+    private boolean matched;
+    private long matchedSegmentId;
+    private double matchedLatitude;
+    private double matchedLongitude;
+    private double confidence;
+
+    private final RoadSegments.Visitor collect = this::addCandidate;
+
+    MapMatcher(RoadSegments segments, double searchRadiusMeters, int maxCandidates, double minSigmaMeters,
+               double betaMeters, double disconnectedPenalty, long maxGapMillis) {
+        this.segments = segments;
+        this.searchRadiusMeters = searchRadiusMeters;
+        this.maxCandidates = Math.max(1, maxCandidates);
+        this.minSigmaMeters = minSigmaMeters;
+        this.betaMeters = betaMeters;
+        this.disconnectedPenalty = disconnectedPenalty;
+        this.maxGapMillis = maxGapMillis;
+
+        segment = new int[this.maxCandidates];
+        distance = new double[this.maxCandidates];
+        latitude = new double[this.maxCandidates];
+        longitude = new double[this.maxCandidates];
+        score = new double[this.maxCandidates];
+        previousSegment = new int[this.maxCandidates];
+        previousLatitude = new double[this.maxCandidates];
+        previousLongitude = new double[this.maxCandidates];
+        previousScore = new double[this.maxCandidates];
+    }
+
+    /**
+     * Runs one matching step.
+     *
+     * @return whether the fix was matched, the result being available
+     * through the getters until the next call
+     */
+    boolean onFix(double fixLatitude, double fixLongitude, double accuracyMeters, long timeMillis) {
+        this.fixLatitude = fixLatitude;
+        this.fixLongitude = fixLongitude;
+        this.metersPerDegreeLongitude = DeadReckoning.distanceMeters(fixLatitude, 0, fixLatitude, 1);
+        count = 0;
+        segments.query(fixLatitude, fixLongitude, searchRadiusMeters, collect);
+
+        if (count == 0) {
+            previousCount = 0;
+            matched = false;
+            return false;
+        }
+
+        double sigma = Math.max(minSigmaMeters, accuracyMeters);
+        boolean chained = previousCount > 0 && timeMillis - previousTimeMillis <= maxGapMillis;
+        double travelled = chained
+                ? DeadReckoning.distanceMeters(previousFixLatitude, previousFixLongitude, fixLatitude, fixLongitude)
+                : 0;
+        double best = Double.NEGATIVE_INFINITY;
+        int bestIndex = 0;
+        for (int i = 0; i < count; i++) {
+            double d = distance[i] / sigma;
+            double emission = -0.5 * d * d;
+            double transition = 0;
+            if (chained) {
+                transition = Double.NEGATIVE_INFINITY;
+                for (int j = 0; j < previousCount; j++) {
+                    double moved = DeadReckoning.distanceMeters(previousLatitude[j], previousLongitude[j],
+                            latitude[i], longitude[i]);
+                    double candidate = previousScore[j] - Math.abs(travelled - moved) / betaMeters;
+                    if (previousSegment[j] != segment[i] && !segments.connected(previousSegment[j], segment[i])) {
+                        candidate -= disconnectedPenalty;
+                    }
+                    transition = Math.max(transition, candidate);
+                }
+            }
+            score[i] = emission + transition;
+            if (score[i] > best) {
+                best = score[i];
+                bestIndex = i;
+            }
+        }
+
+        // Normalized so scores stay small, the best being 0
+        double total = 0;
+        for (int i = 0; i < count; i++) {
+            score[i] -= best;
+            total += Math.exp(score[i]);
+        }
+        matched = true;
+        matchedSegmentId = segments.id(segment[bestIndex]);
+        matchedLatitude = latitude[bestIndex];
+        matchedLongitude = longitude[bestIndex];
+        confidence = 1 / total;
+
+        swapCandidates();
+        previousFixLatitude = fixLatitude;
+        previousFixLongitude = fixLongitude;
+        previousTimeMillis = timeMillis;
+        return true;
+    }
+
+    void reset() {
+        previousCount = 0;
+        matched = false;
+    }
+
+    boolean isMatched() {
+        return matched;
+    }
+
+    long getSegmentId() {
+        return matchedSegmentId;
+    }
+
+    double getLatitude() {
+        return matchedLatitude;
+    }
+
+    double getLongitude() {
+        return matchedLongitude;
+    }
+
+    /** Share of the probability held by the reported candidate, in (0, 1]. */
+    double getConfidence() {
+        return confidence;
+    }
+
+    /** Projects the fix onto {@code s} and keeps it if among the closest candidates. */
+    private void addCandidate(int s) {
+        // Local plane in meters around the fix
+        double ay = (segments.latitude(s, 0) - fixLatitude) * 111_320;
+        double ax = (segments.longitude(s, 0) - fixLongitude) * metersPerDegreeLongitude;
+        double by = (segments.latitude(s, 1) - fixLatitude) * 111_320;
+        double bx = (segments.longitude(s, 1) - fixLongitude) * metersPerDegreeLongitude;
+        double dx = bx - ax;
+        double dy = by - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared > 0 ? Math.max(0, Math.min(1, -(ax * dx + ay * dy) / lengthSquared)) : 0;
+        double px = ax + t * dx;
+        double py = ay + t * dy;
+        double d = Math.sqrt(px * px + py * py);
+        if (d > searchRadiusMeters || (count == maxCandidates && d >= distance[count - 1])) {
+            return;
+        }
+
+        int i = count < maxCandidates ? count++ : maxCandidates - 1;
+        while (i > 0 && distance[i - 1] > d) {
+            segment[i] = segment[i - 1];
+            distance[i] = distance[i - 1];
+            latitude[i] = latitude[i - 1];
+            longitude[i] = longitude[i - 1];
+            i--;
+        }
+        segment[i] = s;
+        distance[i] = d;
+        latitude[i] = fixLatitude + py / 111_320;
+        longitude[i] = fixLongitude + px / metersPerDegreeLongitude;
+    }
+
+    private void swapCandidates() {
+        previousCount = count;
+        System.arraycopy(segment, 0, previousSegment, 0, count);
+        System.arraycopy(latitude, 0, previousLatitude, 0, count);
+        System.arraycopy(longitude, 0, previousLongitude, 0, count);
+        System.arraycopy(score, 0, previousScore, 0, count);
+    }
+}
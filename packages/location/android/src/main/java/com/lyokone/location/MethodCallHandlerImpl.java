@@ -1,7 +1,11 @@
 package com.lyokone.location;
 
+import java.net.URL;
+import java.util.ArrayList;
 import java.util.Map;
 
+import com.google.android.gms.location.Priority;
+
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Color;
@@ -27,6 +31,13 @@ final class MethodCallHandlerImpl implements MethodCallHandler {
     @Nullable
     private MethodChannel channel;
 
+    // Asks the plugin to bind the location service, called on the first method call
+    @Nullable
+    private Runnable onServiceNeeded;
+
+    // Calls received before the location service was bound, replayed in order once it is
+    private final ArrayList<Runnable> pendingCalls = new ArrayList<>();
+
     private static final String METHOD_CHANNEL_NAME = "lyokone/location";
 
     void setLocation(@Nullable FlutterLocation location) {
@@ -35,6 +46,17 @@ final class MethodCallHandlerImpl implements MethodCallHandler {
 
     void setLocationService(@Nullable FlutterLocationService locationService) {
         this.locationService = locationService;
+        if (locationService != null && location != null && !pendingCalls.isEmpty()) {
+            ArrayList<Runnable> calls = new ArrayList<>(pendingCalls);
+            pendingCalls.clear();
+            for (Runnable call : calls) {
+                call.run();
+            }
+        }
+    }
+
+    void setOnServiceNeeded(@Nullable Runnable onServiceNeeded) {
+        this.onServiceNeeded = onServiceNeeded;
     }
 
     void setContext(@Nullable Context context) {
@@ -43,6 +65,14 @@ final class MethodCallHandlerImpl implements MethodCallHandler {
 
     @Override
     public void onMethodCall(MethodCall call, Result result) {
+        if (location == null || locationService == null) {
+            pendingCalls.add(() -> onMethodCall(call, result));
+            if (onServiceNeeded != null) {
+                onServiceNeeded.run();
+            }
+            return;
+        }
+
         switch (call.method) {
             case "changeSettings":
                 onChangeSettings(call, result);
@@ -71,6 +101,60 @@ final class MethodCallHandlerImpl implements MethodCallHandler {
             case "changeNotificationOptions":
                 onChangeNotificationOptions(call, result);
                 break;
+            case "setDeadReckoning":
+                onSetDeadReckoning(call, result);
+                break;
+            case "setSegmentation":
+                onSetSegmentation(call, result);
+                break;
+            case "setAggregation":
+                onSetAggregation(call, result);
+                break;
+            case "setGnssStatus":
+                onSetGnssStatus(call, result);
+                break;
+            case "setLiveNotification":
+                onSetLiveNotification(call, result);
+                break;
+            case "configureUpload":
+                onConfigureUpload(call, result);
+                break;
+            case "flushUpload":
+                onFlushUpload(result);
+                break;
+            case "getUploadState":
+                onGetUploadState(result);
+                break;
+            case "startRecording":
+                onStartRecording(call, result);
+                break;
+            case "stopRecording":
+                onStopRecording(result);
+                break;
+            case "getRecordingStats":
+                result.success(locationService != null ? locationService.getRecordingStats() : null);
+                break;
+            case "scheduleSampling":
+                onScheduleSampling(call, result);
+                break;
+            case "cancelSampling":
+                onCancelSampling(call, result);
+                break;
+            case "getSamples":
+                onGetSamples(call, result);
+                break;
+            case "setMapMatching":
+                onSetMapMatching(call, result);
+                break;
+            case "setEnergyBudget":
+                onSetEnergyBudget(call, result);
+                break;
+            case "getEnergyAccounting":
+                result.success(location.getEnergyAccounting());
+                break;
+            case "getSessionState":
+                result.success(location.getSessionState());
+                break;
             default:
                 result.notImplemented();
                 break;
@@ -102,6 +186,7 @@ final class MethodCallHandlerImpl implements MethodCallHandler {
 
         channel.setMethodCallHandler(null);
         channel = null;
+        pendingCalls.clear();
     }
 
     private void onChangeSettings(MethodCall call, Result result) {
@@ -111,6 +196,10 @@ final class MethodCallHandlerImpl implements MethodCallHandler {
             final Long fastestUpdateIntervalMilliseconds = updateIntervalMilliseconds / 2;
             final Float distanceFilter = new Float((double) call.argument("distanceFilter"));
 
+            if (call.hasArgument("fields")) {
+                location.setFieldMask(LocationSerializer.parseMask(call.argument("fields")));
+            }
+
             location.changeSettings(locationAccuracy, updateIntervalMilliseconds, fastestUpdateIntervalMilliseconds,
                     distanceFilter);
 
@@ -121,8 +210,345 @@ final class MethodCallHandlerImpl implements MethodCallHandler {
         }
     }
 
+    private void onSetDeadReckoning(MethodCall call, Result result) {
+        try {
+            final Boolean enable = call.argument("enable");
+            final Integer rate = call.argument("rate");
+            final Double stepLength = call.argument("stepLength");
+            final Number maxPropagation = call.argument("maxPropagation");
+            if (enable != null && enable && !location.checkActivityRecognitionPermission()) {
+                // Without it dead reckoning silently never sees a step
+                result.error("PERMISSION_DENIED", "Activity recognition permission not granted", null);
+                return;
+            }
+
+            location.setDeadReckoning(enable != null && enable, rate != null ? rate : 5, stepLength,
+                    maxPropagation != null ? maxPropagation.longValue() : null);
+
+            result.success(1);
+        } catch (Exception e) {
+            result.error("DEAD_RECKONING_ERROR",
+                    "An unexpected error happened during dead reckoning setup:" + e.getMessage(), null);
+        }
+    }
+
+    private void onSetSegmentation(MethodCall call, Result result) {
+        try {
+            final Boolean enable = call.argument("enable");
+            final Double distance = call.argument("distance");
+            final Number duration = call.argument("duration");
+            final Boolean suppressAtStay = call.argument("suppressAtStay");
+
+            location.setSegmentation(enable != null && enable,
+                    distance != null ? distance : 100,
+                    duration != null ? duration.longValue() : 5 * 60 * 1000,
+                    suppressAtStay != null && suppressAtStay);
+
+            result.success(1);
+        } catch (Exception e) {
+            result.error("SEGMENTATION_ERROR",
+                    "An unexpected error happened during segmentation setup:" + e.getMessage(), null);
+        }
+    }
+
+    private void onSetAggregation(MethodCall call, Result result) {
+        try {
+            final Boolean enable = call.argument("enable");
+            final String scheme = call.argument("scheme");
+            final Integer precision = call.argument("precision");
+            final Integer maxCells = call.argument("maxCells");
+            final Number flushInterval = call.argument("flushInterval");
+            final Number maxGap = call.argument("maxGap");
+            final Boolean suppressFixes = call.argument("suppressFixes");
+
+            final boolean tiles = "tile".equals(scheme);
+            location.setAggregation(enable != null && enable,
+                    tiles ? CellAggregator.SCHEME_TILE : CellAggregator.SCHEME_GEOHASH,
+                    precision != null ? precision : (tiles ? 17 : 7),
+                    maxCells != null ? maxCells : 4096,
+                    flushInterval != null ? flushInterval.longValue() : 60 * 1000,
+                    maxGap != null ? maxGap.longValue() : 5 * 60 * 1000,
+                    suppressFixes != null && suppressFixes);
+
+            result.success(1);
+        } catch (Exception e) {
+            result.error("AGGREGATION_ERROR",
+                    "An unexpected error happened during aggregation setup:" + e.getMessage(), null);
+        }
+    }
+
+    private void onSetGnssStatus(MethodCall call, Result result) {
+        try {
+            final Boolean enable = call.argument("enable");
+            final Boolean attachToFixes = call.argument("attachToFixes");
+            final Number interval = call.argument("interval");
+
+            location.setGnssStatus(enable != null && enable,
+                    attachToFixes == null || attachToFixes,
+                    interval != null ? interval.longValue() : 0);
+
+            result.success(1);
+        } catch (Exception e) {
+            result.error("GNSS_STATUS_ERROR",
+                    "An unexpected error happened during GNSS status setup:" + e.getMessage(), null);
+        }
+    }
+
+    private void onScheduleSampling(MethodCall call, Result result) {
+        if (context == null) {
+            result.error("CONTEXT_ERROR", "Context is not available", null);
+            return;
+        }
+        try {
+            final String id = call.argument("id");
+            final Number period = call.argument("period");
+            final Number offset = call.argument("offset");
+            final Number window = call.argument("window");
+            final Number jitter = call.argument("jitter");
+            final Integer priority = location.mapFlutterAccuracy.get(call.argument("accuracy"));
+            final Number targetAccuracy = call.argument("targetAccuracy");
+            final Number deadline = call.argument("deadline");
+            final Boolean deliver = call.argument("deliver");
+            final Boolean exact = call.argument("exact");
+            if (id == null || period == null) {
+                result.error("SAMPLING_ERROR", "A schedule needs an id and a period", null);
+                return;
+            }
+            if (deadline != null && (deadline.longValue() <= 0
+                    || deadline.longValue() > SparseSampler.MAX_DEADLINE_MILLIS)) {
+                result.error("SAMPLING_ERROR",
+                        "The deadline must be between 1 and " + SparseSampler.MAX_DEADLINE_MILLIS + " ms", null);
+                return;
+            }
+
+            SparseSampler.schedule(context, new SampleScheduler.Schedule(id,
+                            period.longValue(),
+                            offset != null ? offset.longValue() : 0,
+                            window != null ? window.longValue() : period.longValue() / 10,
+                            jitter != null ? jitter.longValue() : 0,
+                            priority != null ? priority : Priority.PRIORITY_HIGH_ACCURACY,
+                            targetAccuracy != null ? targetAccuracy.floatValue() : 50,
+                            deadline != null ? deadline.longValue() : SparseSampler.MAX_DEADLINE_MILLIS,
+                            deliver != null && deliver,
+                            exact != null && exact));
+
+            result.success(1);
+        } catch (Exception e) {
+            result.error("SAMPLING_ERROR",
+                    "An unexpected error happened during sampling setup:" + e.getMessage(), null);
+        }
+    }
+
+    private void onCancelSampling(MethodCall call, Result result) {
+        if (context == null) {
+            result.error("CONTEXT_ERROR", "Context is not available", null);
+            return;
+        }
+        SparseSampler.cancel(context, call.argument("id"));
+        result.success(1);
+    }
+
+    private void onGetSamples(MethodCall call, Result result) {
+        if (context == null) {
+            result.error("CONTEXT_ERROR", "Context is not available", null);
+            return;
+        }
+        try {
+            final Boolean clear = call.argument("clear");
+            result.success(SparseSampler.getSamples(context, clear != null && clear));
+        } catch (Exception e) {
+            result.error("SAMPLING_ERROR",
+                    "An unexpected error happened while reading samples:" + e.getMessage(), null);
+        }
+    }
+
+    private void onSetMapMatching(MethodCall call, Result result) {
+        try {
+            final Boolean enable = call.argument("enable");
+            final Number searchRadius = call.argument("searchRadius");
+            final Integer maxCandidates = call.argument("maxCandidates");
+            final Number beta = call.argument("beta");
+            final Number disconnectedPenalty = call.argument("disconnectedPenalty");
+            final Number maxGap = call.argument("maxGap");
+
+            location.setMapMatching(enable != null && enable ? call.<String>argument("path") : null,
+                    searchRadius != null ? searchRadius.doubleValue() : 50,
+                    maxCandidates != null ? maxCandidates : 8,
+                    beta != null ? beta.doubleValue() : 10,
+                    disconnectedPenalty != null ? disconnectedPenalty.doubleValue() : 3,
+                    maxGap != null ? maxGap.longValue() : 60 * 1000, result);
+        } catch (Exception e) {
+            result.error("MAP_MATCHING_ERROR",
+                    "An unexpected error happened during map matching setup:" + e.getMessage(), null);
+        }
+    }
+
+    private void onSetEnergyBudget(MethodCall call, Result result) {
+        try {
+            final Boolean enable = call.argument("enable");
+            final Number dutyCycle = call.argument("dutyCycle");
+            final Number mahPerHour = call.argument("mahPerHour");
+            final Number minBurst = call.argument("minBurst");
+            final Number maxStaleness = call.argument("maxStaleness");
+            final Integer restAccuracy = location.mapFlutterAccuracy.get(call.argument("restAccuracy"));
+            final Number targetAccuracy = call.argument("targetAccuracy");
+            final Map<String, Number> costs = call.argument("costs");
+
+            double[] costMilliamps = null;
+            if (costs != null) {
+                final String[] names = {"high", "balanced", "low", "none"};
+                costMilliamps = new double[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    final Number cost = costs.get(names[i]);
+                    if (cost == null) {
+                        throw new IllegalArgumentException("Missing cost for " + names[i]);
+                    }
+                    costMilliamps[i] = cost.doubleValue();
+                }
+            }
+
+            location.setEnergyBudget(enable != null && enable,
+                    dutyCycle != null ? dutyCycle.doubleValue() : 0.25,
+                    mahPerHour != null ? mahPerHour.doubleValue() : null,
+                    minBurst != null ? minBurst.longValue() : 30 * 1000,
+                    maxStaleness != null ? maxStaleness.longValue() : 5 * 60 * 1000,
+                    restAccuracy != null ? restAccuracy : Priority.PRIORITY_LOW_POWER,
+                    targetAccuracy != null ? targetAccuracy.floatValue() : 0,
+                    costMilliamps);
+
+            result.success(1);
+        } catch (Exception e) {
+            result.error("ENERGY_BUDGET_ERROR",
+                    "An unexpected error happened during energy budget setup:" + e.getMessage(), null);
+        }
+    }
+
+    private void onSetLiveNotification(MethodCall call, Result result) {
+        if (locationService == null) {
+            result.error("SERVICE_ERROR", "Location service is not available", null);
+            return;
+        }
+        try {
+            final Boolean enable = call.argument("enable");
+            if (enable == null || !enable) {
+                locationService.setLiveNotification(null, null, null, 0, null);
+                result.success(0);
+                return;
+            }
+
+            final Number minInterval = call.argument("minInterval");
+            final Double destinationLatitude = call.argument("destinationLatitude");
+            final Double destinationLongitude = call.argument("destinationLongitude");
+            locationService.setLiveNotification(
+                    call.argument("title"),
+                    call.argument("text"),
+                    call.argument("subText"),
+                    minInterval != null ? minInterval.longValue() : 5000,
+                    new LiveTrackingState(destinationLatitude, destinationLongitude));
+            result.success(1);
+        } catch (Exception e) {
+            result.error("LIVE_NOTIFICATION_ERROR",
+                    "An unexpected error happened during live notification setup:" + e.getMessage(), null);
+        }
+    }
+
+    private void onConfigureUpload(MethodCall call, Result result) {
+        if (locationService == null) {
+            result.error("SERVICE_ERROR", "Location service is not available", null);
+            return;
+        }
+        try {
+            final Boolean enable = call.argument("enable");
+            if (enable == null || !enable) {
+                locationService.stopUpload();
+                result.success(0);
+                return;
+            }
+
+            final LocationUploader.Config config = new LocationUploader.Config();
+            config.endpoint = new URL(call.<String>argument("url"));
+            final Map<String, String> headers = call.argument("headers");
+            if (headers != null) {
+                config.headers.putAll(headers);
+            }
+            final Integer batchSize = call.argument("batchSize");
+            if (batchSize != null) {
+                config.maxBatchSize = batchSize;
+            }
+            final Number batchAge = call.argument("batchAge");
+            if (batchAge != null) {
+                config.maxBatchAgeMillis = batchAge.longValue();
+            }
+            final Number maxSpoolBytes = call.argument("maxSpoolBytes");
+            if (maxSpoolBytes != null) {
+                config.maxSpoolBytes = maxSpoolBytes.longValue();
+            }
+            final Number initialBackoff = call.argument("initialBackoff");
+            if (initialBackoff != null) {
+                config.initialBackoffMillis = initialBackoff.longValue();
+            }
+            final Number maxBackoff = call.argument("maxBackoff");
+            if (maxBackoff != null) {
+                config.maxBackoffMillis = maxBackoff.longValue();
+            }
+
+            locationService.configureUpload(config);
+            result.success(1);
+        } catch (Exception e) {
+            result.error("UPLOAD_ERROR",
+                    "An unexpected error happened during upload setup:" + e.getMessage(), null);
+        }
+    }
+
+    private void onStartRecording(MethodCall call, Result result) {
+        if (locationService == null) {
+            result.error("SERVICE_ERROR", "Location service is not available", null);
+            return;
+        }
+        try {
+            final String path = call.argument("path");
+            final String format = call.argument("format");
+            final Number flushInterval = call.argument("flushInterval");
+            if (path == null) {
+                result.error("RECORDING_ERROR", "A recording path is required", null);
+                return;
+            }
+
+            locationService.startRecording(path,
+                    TrackRecorder.parseFormat(format != null ? format : "gpx"),
+                    flushInterval != null ? flushInterval.longValue() : 5000, result);
+        } catch (Exception e) {
+            result.error("RECORDING_ERROR",
+                    "An unexpected error happened during recording setup:" + e.getMessage(), null);
+        }
+    }
+
+    private void onStopRecording(Result result) {
+        if (locationService == null) {
+            result.success(null);
+            return;
+        }
+        try {
+            locationService.stopRecording(result);
+        } catch (Exception e) {
+            result.error("RECORDING_ERROR",
+                    "An unexpected error happened while finishing the recording:" + e.getMessage(), null);
+        }
+    }
+
+    private void onFlushUpload(Result result) {
+        if (locationService != null) {
+            locationService.flushUpload();
+        }
+        result.success(1);
+    }
+
+    private void onGetUploadState(Result result) {
+        result.success(locationService != null ? locationService.getUploadState() : null);
+    }
+
     private void onGetLocation(Result result) {
-        location.getLocationResult = result;
+        location.addLocationResult(result);
         if (!location.checkPermissions()) {
             location.requestPermissions();
         } else {
@@ -157,8 +583,7 @@ final class MethodCallHandlerImpl implements MethodCallHandler {
             return;
         }
 
-        location.result = result;
-        location.requestPermissions();
+        location.requestPermissions(result);
     }
 
     private void onRequestService(Result result) {
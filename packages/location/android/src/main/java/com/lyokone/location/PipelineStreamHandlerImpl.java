@@ -0,0 +1,121 @@
+package com.lyokone.location;
+
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.EventChannel;
+import io.flutter.plugin.common.EventChannel.EventSink;
+import io.flutter.plugin.common.EventChannel.StreamHandler;
+
+/**
+ * Delivers events produced natively from the fix pipeline (trips, stops, ...)
+ * rather than the raw fixes themselves. Every event is a map with a
+ * {@code type} entry.
+ */
+class PipelineStreamHandlerImpl implements StreamHandler {
+    private static final String TAG = "PipelineStreamHandler";
+
+    private FlutterLocation location;
+    private EventChannel channel;
+
+    // The sink this engine registered on the shared session
+    @Nullable
+    private EventSink sink;
+
+    private static final String STREAM_CHANNEL_NAME = "lyokone/locationevents";
+
+    // Asks the plugin to bind the location service, called on the first listen
+    @Nullable
+    private Runnable onServiceNeeded;
+
+    // A listen received before the location service was bound
+    @Nullable
+    private EventSink pendingSink;
+    @Nullable
+    private Object pendingArguments;
+
+    void setLocation(@Nullable FlutterLocation location) {
+        this.location = location;
+        if (location != null && pendingSink != null) {
+            EventSink sink = pendingSink;
+            pendingSink = null;
+            onListen(pendingArguments, sink);
+            pendingArguments = null;
+        }
+    }
+
+    void setOnServiceNeeded(@Nullable Runnable onServiceNeeded) {
+        this.onServiceNeeded = onServiceNeeded;
+    }
+
+    /**
+     * Registers this instance as a stream events handler on the given
+     * {@code messenger}.
+     */
+    void startListening(BinaryMessenger messenger) {
+        if (channel != null) {
+            Log.wtf(TAG, "Setting a method call handler before the last was disposed.");
+            stopListening();
+        }
+
+        channel = new EventChannel(messenger, STREAM_CHANNEL_NAME);
+        channel.setStreamHandler(this);
+    }
+
+    /**
+     * Clears this instance from listening to stream events.
+     */
+    void stopListening() {
+        if (channel == null) {
+            Log.d(TAG, "Tried to stop listening when no EventChannel had been initialized.");
+            return;
+        }
+
+        channel.setStreamHandler(null);
+        channel = null;
+
+        // The engine is going away without necessarily cancelling its stream
+        if (sink != null && location != null) {
+            location.removePipelineSink(sink);
+            sink = null;
+            location.stopRequestingLocation();
+        }
+        pendingSink = null;
+    }
+
+    @Override
+    public void onListen(Object arguments, final EventSink eventsSink) {
+        if (location == null) {
+            pendingArguments = arguments;
+            pendingSink = eventsSink;
+            if (onServiceNeeded != null) {
+                onServiceNeeded.run();
+            }
+            return;
+        }
+
+        sink = eventsSink;
+        location.addPipelineSink(eventsSink);
+
+        if (location.isStreaming() && location.checkPermissions()) {
+            location.startRequestingLocation();
+        }
+    }
+
+    @Override
+    public void onCancel(Object arguments) {
+        if (location == null) {
+            pendingSink = null;
+            pendingArguments = null;
+            return;
+        }
+        if (sink != null) {
+            location.removePipelineSink(sink);
+            sink = null;
+        }
+        location.stopRequestingLocation();
+    }
+}
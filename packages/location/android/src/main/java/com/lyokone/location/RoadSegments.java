@@ -0,0 +1,196 @@
+package com.lyokone.location;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A read-only road graph of straight segments, memory-mapped from a file,
+ * with a uniform grid index for radius queries.
+ * <p>
+ * The file starts with the ASCII bytes {@code SEG1} and the segment count as
+ * a little-endian int. Each segment follows as 24 little-endian bytes: a long
+ * id, then the latitude and longitude of both ends as ints in 1e-7 degrees.
+ * Segments sharing an end point are considered connected.
+ * <p>
+ * The segments stay in the mapped file; only the grid, a few ints per
+ * segment, lives on the heap. Queries are not thread safe.
+ */
+final class RoadSegments {
+    private static final int HEADER_BYTES = 8;
+    private static final int RECORD_BYTES = 24;
+    private static final double METERS_PER_DEGREE = 111_320;
+
+    interface Visitor {
+        void visit(int segment);
+    }
+
+    private final MappedByteBuffer buffer;
+    private final int count;
+
+    // Grid over the bounding box of the segments, in 1e-7 degrees
+    private final int minLatitude;
+    private final int minLongitude;
+    private final int cellSize;
+    private final int columns;
+    private final int rows;
+    // Segments of cell c are cellSegments[cellStart[c]..cellStart[c + 1])
+    private final int[] cellStart;
+    private final int[] cellSegments;
+
+    // Query stamp per segment, so a segment spanning several cells is visited once
+    private final int[] visited;
+    private int query;
+
+    RoadSegments(String path, double cellMeters) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r");
+             FileChannel channel = file.getChannel()) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_BYTES || buffer.get(0) != 'S' || buffer.get(1) != 'E'
+                || buffer.get(2) != 'G' || buffer.get(3) != '1') {
+            throw new IOException("Not a road segment file: " + path);
+        }
+        count = buffer.getInt(4);
+        if (count < 0 || (long) HEADER_BYTES + (long) count * RECORD_BYTES > buffer.capacity()) {
+            throw new IOException("Truncated road segment file: " + path);
+        }
+        visited = new int[count];
+
+        int minLat = Integer.MAX_VALUE;
+        int minLon = Integer.MAX_VALUE;
+        int maxLat = Integer.MIN_VALUE;
+        int maxLon = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            minLat = Math.min(minLat, Math.min(rawLatitude(i, 0), rawLatitude(i, 1)));
+            maxLat = Math.max(maxLat, Math.max(rawLatitude(i, 0), rawLatitude(i, 1)));
+            minLon = Math.min(minLon, Math.min(rawLongitude(i, 0), rawLongitude(i, 1)));
+            maxLon = Math.max(maxLon, Math.max(rawLongitude(i, 0), rawLongitude(i, 1)));
+        }
+        if (count == 0) {
+            minLat = maxLat = minLon = maxLon = 0;
+        }
+        minLatitude = minLat;
+        minLongitude = minLon;
+
+        // Cells are square in degrees and grow until the grid stays reasonably small
+        long size = Math.max(1, Math.round(cellMeters / METERS_PER_DEGREE * 1e7));
+        while (((long) (maxLat - minLat) / size + 1) * ((long) (maxLon - minLon) / size + 1)
+                > Math.max(1024, 4L * count)) {
+            size *= 2;
+        }
+        cellSize = (int) Math.min(size, Integer.MAX_VALUE);
+        rows = (int) ((long) (maxLat - minLat) / cellSize + 1);
+        columns = (int) ((long) (maxLon - minLon) / cellSize + 1);
+
+        // Two passes, counting then filling, to build the index without boxing
+        cellStart = new int[rows * columns + 1];
+        for (int i = 0; i < count; i++) {
+            forEachCell(i, cell -> cellStart[cell + 1]++);
+        }
+        for (int c = 0; c < rows * columns; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        cellSegments = new int[cellStart[rows * columns]];
+        int[] fill = new int[rows * columns];
+        for (int i = 0; i < count; i++) {
+            final int segment = i;
+            forEachCell(i, cell -> cellSegments[cellStart[cell] + fill[cell]++] = segment);
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    long id(int segment) {
+        return buffer.getLong(HEADER_BYTES + segment * RECORD_BYTES);
+    }
+
+    /** Latitude of end 0 or 1 of {@code segment}, in degrees. */
+    double latitude(int segment, int end) {
+        return rawLatitude(segment, end) / 1e7;
+    }
+
+    double longitude(int segment, int end) {
+        return rawLongitude(segment, end) / 1e7;
+    }
+
+    /** Whether two segments share an end point. */
+    boolean connected(int a, int b) {
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 2; j++) {
+                if (rawLatitude(a, i) == rawLatitude(b, j) && rawLongitude(a, i) == rawLongitude(b, j)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Visits, once each, the segments in the grid cells within {@code radiusMeters}. */
+    void query(double latitude, double longitude, double radiusMeters, Visitor visitor) {
+        if (count == 0) {
+            return;
+        }
+        if (++query == 0) {
+            Arrays.fill(visited, 0);
+            query = 1;
+        }
+        double radiusLatitude = radiusMeters / METERS_PER_DEGREE;
+        double radiusLongitude = radiusLatitude / Math.max(0.01, Math.cos(Math.toRadians(latitude)));
+        int row0 = row((long) ((latitude - radiusLatitude) * 1e7));
+        int row1 = row((long) ((latitude + radiusLatitude) * 1e7));
+        int column0 = column((long) ((longitude - radiusLongitude) * 1e7));
+        int column1 = column((long) ((longitude + radiusLongitude) * 1e7));
+        for (int r = row0; r <= row1; r++) {
+            for (int c = column0; c <= column1; c++) {
+                int cell = r * columns + c;
+                for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                    int segment = cellSegments[k];
+                    if (visited[segment] != query) {
+                        visited[segment] = query;
+                        visitor.visit(segment);
+                    }
+                }
+            }
+        }
+    }
+
+    private interface CellVisitor {
+        void visit(int cell);
+    }
+
+    // Every cell overlapped by the bounding box of the segment
+    private void forEachCell(int segment, CellVisitor visitor) {
+        int row0 = row(Math.min(rawLatitude(segment, 0), rawLatitude(segment, 1)));
+        int row1 = row(Math.max(rawLatitude(segment, 0), rawLatitude(segment, 1)));
+        int column0 = column(Math.min(rawLongitude(segment, 0), rawLongitude(segment, 1)));
+        int column1 = column(Math.max(rawLongitude(segment, 0), rawLongitude(segment, 1)));
+        for (int r = row0; r <= row1; r++) {
+            for (int c = column0; c <= column1; c++) {
+                visitor.visit(r * columns + c);
+            }
+        }
+    }
+
+    private int row(long latitude) {
+        return (int) Math.max(0, Math.min(rows - 1, (latitude - minLatitude) / cellSize));
+    }
+
+    private int column(long longitude) {
+        return (int) Math.max(0, Math.min(columns - 1, (longitude - minLongitude) / cellSize));
+    }
+
+    private int rawLatitude(int segment, int end) {
+        return buffer.getInt(HEADER_BYTES + segment * RECORD_BYTES + 8 + end * 8);
+    }
+
+    private int rawLongitude(int segment, int end) {
+        return buffer.getInt(HEADER_BYTES + segment * RECORD_BYTES + 12 + end * 8);
+    }
+}
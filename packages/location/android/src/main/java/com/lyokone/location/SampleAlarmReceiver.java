@@ -0,0 +1,15 @@
+package com.lyokone.location;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Wakes up {@link SparseSampler} at the planned sample slots.
+ */
+public class SampleAlarmReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        SparseSampler.onAlarm(context, goAsync());
+    }
+}
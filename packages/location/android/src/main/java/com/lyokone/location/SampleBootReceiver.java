@@ -0,0 +1,22 @@
+package com.lyokone.location;
+
+import android.app.AlarmManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Sets the {@link SparseSampler} alarm again once the alarms were cleared by
+ * a reboot or an app update, or when the exact alarm permission is granted.
+ */
+public class SampleBootReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String action = intent.getAction();
+        if (Intent.ACTION_BOOT_COMPLETED.equals(action)
+                || Intent.ACTION_MY_PACKAGE_REPLACED.equals(action)
+                || AlarmManager.ACTION_SCHEDULE_EXACT_ALARM_PERMISSION_STATE_CHANGED.equals(action)) {
+            SparseSampler.rearm(context);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.lyokone.location;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Plans the wakeups of periodic single fix samples.
+ * <p>
+ * Each schedule has slots every {@code periodMillis}, aligned on wall clock
+ * multiples of the period shifted by {@code offsetMillis}, each delayed by a
+ * random jitter of up to {@code jitterMillis}. A slot may be served up to
+ * {@code windowMillis} late. The wakeup is placed at the end of the earliest
+ * window, and every schedule whose slot has come by then is served by the
+ * same wakeup, so schedules with overlapping windows coalesce.
+ * <p>
+ * It only depends on the times passed in, so it runs on the JVM. It is not
+ * thread safe. The schedules are stored as JSON, with their planned slots.
+ */
+final class SampleScheduler {
+    static final class Schedule {
+        final String id;
+        final long periodMillis;
+        final long offsetMillis;
+        final long windowMillis;
+        final long jitterMillis;
+        final int priority;
+        final float accuracyMeters;
+        final long deadlineMillis;
+        final boolean deliver;
+        // Wants an exact alarm rather than any time in its window
+        final boolean exact;
+
+        // Aligned slot and the jittered time it is due at
+        long alignedMillis;
+        long slotMillis;
+
+        Schedule(String id, long periodMillis, long offsetMillis, long windowMillis, long jitterMillis,
+                 int priority, float accuracyMeters, long deadlineMillis, boolean deliver, boolean exact) {
+            this.id = id;
+            this.periodMillis = Math.max(1, periodMillis);
+            this.offsetMillis = offsetMillis;
+            this.windowMillis = Math.max(0, windowMillis);
+            this.jitterMillis = Math.max(0, jitterMillis);
+            this.priority = priority;
+            this.accuracyMeters = accuracyMeters;
+            this.deadlineMillis = deadlineMillis;
+            this.deliver = deliver;
+            this.exact = exact;
+        }
+    }
+
+    private final ArrayList<Schedule> schedules = new ArrayList<>();
+    private final Random random;
+
+    SampleScheduler(Random random) {
+        this.random = random;
+    }
+
+    List<Schedule> getSchedules() {
+        return schedules;
+    }
+
+    /** Adds or replaces the schedule with the same id, its first slot being after {@code nowMillis}. */
+    void put(Schedule schedule, long nowMillis) {
+        remove(schedule.id);
+        planAfter(schedule, nowMillis);
+        schedules.add(schedule);
+    }
+
+    /** Adds a schedule restored with its planned slot. */
+    void restore(Schedule schedule, long alignedMillis, long slotMillis) {
+        remove(schedule.id);
+        schedule.alignedMillis = alignedMillis;
+        schedule.slotMillis = slotMillis;
+        schedules.add(schedule);
+    }
+
+    boolean remove(String id) {
+        for (int i = 0; i < schedules.size(); i++) {
+            if (schedules.get(i).id.equals(id)) {
+                schedules.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The schedules and their planned slots, read back by {@link #restoreJson}. */
+    String toJson() {
+        JSONArray array = new JSONArray();
+        try {
+            for (Schedule schedule : schedules) {
+                array.put(new JSONObject()
+                        .put("id", schedule.id)
+                        .put("period", schedule.periodMillis)
+                        .put("offset", schedule.offsetMillis)
+                        .put("window", schedule.windowMillis)
+                        .put("jitter", schedule.jitterMillis)
+                        .put("priority", schedule.priority)
+                        .put("accuracy", (double) schedule.accuracyMeters)
+                        .put("deadline", schedule.deadlineMillis)
+                        .put("deliver", schedule.deliver)
+                        .put("exact", schedule.exact)
+                        .put("aligned", schedule.alignedMillis)
+                        .put("slot", schedule.slotMillis));
+            }
+        } catch (JSONException e) {
+            // Only thrown for non-finite numbers, which the schedule cannot hold
+            throw new IllegalStateException(e);
+        }
+        return array.toString();
+    }
+
+    /**
+     * Adds the schedules written by {@link #toJson}, keeping their planned
+     * slots. Those read before a malformed one stay restored.
+     */
+    void restoreJson(String json) throws JSONException {
+        JSONArray array = new JSONArray(json);
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject object = array.getJSONObject(i);
+            restore(new Schedule(
+                            object.getString("id"),
+                            object.getLong("period"),
+                            object.getLong("offset"),
+                            object.getLong("window"),
+                            object.getLong("jitter"),
+                            object.getInt("priority"),
+                            (float) object.getDouble("accuracy"),
+                            object.getLong("deadline"),
+                            object.getBoolean("deliver"),
+                            object.getBoolean("exact")),
+                    object.getLong("aligned"),
+                    object.getLong("slot"));
+        }
+    }
+
+    /** The latest time the next wakeup may happen, or {@link Long#MAX_VALUE} without schedules. */
+    long getWakeupMillis() {
+        long wakeup = Long.MAX_VALUE;
+        for (Schedule schedule : schedules) {
+            wakeup = Math.min(wakeup, schedule.slotMillis + schedule.windowMillis);
+        }
+        return wakeup;
+    }
+
+    /**
+     * The earliest time the next wakeup serves every schedule it is planned
+     * for, the start of the window ending at {@link #getWakeupMillis}.
+     */
+    long getWindowStartMillis() {
+        long wakeup = getWakeupMillis();
+        long start = Long.MIN_VALUE;
+        for (Schedule schedule : schedules) {
+            if (schedule.slotMillis <= wakeup) {
+                start = Math.max(start, schedule.slotMillis);
+            }
+        }
+        return start;
+    }
+
+    /** Whether a schedule served by the next wakeup wants it exact. */
+    boolean isWakeupExact() {
+        long wakeup = getWakeupMillis();
+        for (Schedule schedule : schedules) {
+            if (schedule.exact && schedule.slotMillis <= wakeup) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the schedules due at {@code nowMillis} to {@code out} and plans
+     * their next slot. Slots missed entirely, e.g. while the device was off,
+     * are skipped.
+     */
+    void collectDue(long nowMillis, List<Schedule> out) {
+        for (Schedule schedule : schedules) {
+            if (schedule.slotMillis <= nowMillis) {
+                out.add(schedule);
+                planAfter(schedule, Math.max(nowMillis, schedule.alignedMillis));
+            }
+        }
+    }
+
+    private void planAfter(Schedule schedule, long afterMillis) {
+        schedule.alignedMillis = nextAligned(schedule.periodMillis, schedule.offsetMillis, afterMillis);
+        schedule.slotMillis = schedule.alignedMillis
+                + (schedule.jitterMillis > 0 ? (long) (random.nextDouble() * schedule.jitterMillis) : 0);
+    }
+
+    /** The first time after {@code afterMillis} that is {@code offsetMillis} past a multiple of the period. */
+    static long nextAligned(long periodMillis, long offsetMillis, long afterMillis) {
+        long elapsed = afterMillis - offsetMillis;
+        long periods = elapsed / periodMillis;
+        if (elapsed < 0 && periods * periodMillis != elapsed) {
+            periods--;
+        }
+        return (periods + 1) * periodMillis + offsetMillis;
+    }
+}
@@ -0,0 +1,119 @@
+package com.lyokone.location;
+
+/**
+ * Moves a {@link SessionState} and registers or removes the location updates
+ * to match it. Transitions that touch the updates are serialized on a lock,
+ * so listen, cancel, one-shot requests, setting changes and errors racing on
+ * different threads always leave the updates registered exactly while the
+ * state is requesting or streaming. Fixes only advance the state, without the
+ * lock.
+ */
+final class SessionController {
+    interface Updates {
+        /** Registers the location updates and whatever runs along with them. */
+        void register();
+
+        /** Removes what {@link #register} registered. */
+        void unregister();
+
+        /** Whether fixes are still consumed, checked under the lock before stopping. */
+        boolean isNeeded();
+    }
+
+    private static final int RUNNING = SessionState.bit(SessionState.REQUESTING)
+            | SessionState.bit(SessionState.STREAMING);
+
+    private final SessionState state = new SessionState();
+    private final Object lock;
+    private final Updates updates;
+
+    /**
+     * @param lock also held by the owner while it changes the registered
+     *             updates, e.g. to reissue the request
+     */
+    SessionController(Object lock, Updates updates) {
+        this.lock = lock;
+        this.updates = updates;
+    }
+
+    int get() {
+        return state.get();
+    }
+
+    boolean isRunning() {
+        return (RUNNING & SessionState.bit(state.get())) != 0;
+    }
+
+    /** A one-shot result waits for the updates to start. */
+    void addOneShot() {
+        state.advance(SessionState.bit(SessionState.IDLE) | SessionState.bit(SessionState.ERRORED),
+                SessionState.ONE_SHOT_PENDING);
+    }
+
+    /**
+     * Registers the updates unless they already run.
+     *
+     * @return whether they were registered by this call
+     */
+    boolean start() {
+        synchronized (lock) {
+            if (state.advance(~RUNNING, SessionState.REQUESTING) == -1) {
+                return false;
+            }
+            updates.register();
+            return true;
+        }
+    }
+
+    /**
+     * Removes the updates unless they are still needed. A consumer added
+     * concurrently either is seen here or starts the updates afterwards.
+     *
+     * @return whether they were removed by this call
+     */
+    boolean stop() {
+        synchronized (lock) {
+            if (updates.isNeeded()) {
+                return false;
+            }
+            int previous = state.advance(~SessionState.bit(SessionState.IDLE), SessionState.IDLE);
+            if (previous == -1 || (RUNNING & SessionState.bit(previous)) == 0) {
+                return false;
+            }
+            updates.unregister();
+            return true;
+        }
+    }
+
+    /**
+     * Runs {@code reconfigure} with the updates removed, then registers them
+     * again if they were running.
+     */
+    void restart(Runnable reconfigure) {
+        synchronized (lock) {
+            boolean running = state.advance(RUNNING, SessionState.IDLE) != -1;
+            if (running) {
+                updates.unregister();
+            }
+            reconfigure.run();
+            if (running) {
+                start();
+            }
+        }
+    }
+
+    /** Removes the updates and moves to the errored state, the next start starts over. */
+    void fail() {
+        synchronized (lock) {
+            int previous = state.advance(~0, SessionState.ERRORED);
+            if ((RUNNING & SessionState.bit(previous)) != 0) {
+                updates.unregister();
+            }
+        }
+    }
+
+    /** A fix arrived. */
+    void onFix() {
+        state.advance(SessionState.bit(SessionState.REQUESTING), SessionState.STREAMING);
+    }
+}
@@ -0,0 +1,57 @@
+package com.lyokone.location;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lifecycle of the location session, changed through compare-and-set so
+ * that method calls, permission results and location callbacks can race
+ * without locks.
+ */
+final class SessionState {
+    /** No location updates are registered. */
+    static final int IDLE = 0;
+    /** One-shot results wait for updates to be started, e.g. on a permission. */
+    static final int ONE_SHOT_PENDING = 1;
+    /** Updates are registered, no fix arrived yet. */
+    static final int REQUESTING = 2;
+    /** Fixes are being delivered. */
+    static final int STREAMING = 3;
+    /** The last request failed; the next one starts over. */
+    static final int ERRORED = 4;
+
+    private static final String[] NAMES = {
+            "idle", "oneShotPending", "requesting", "streaming", "errored",
+    };
+
+    private final AtomicInteger state = new AtomicInteger(IDLE);
+
+    static int bit(int state) {
+        return 1 << state;
+    }
+
+    static String name(int state) {
+        return NAMES[state];
+    }
+
+    int get() {
+        return state.get();
+    }
+
+    /**
+     * Moves to {@code to} if the current state is one of the
+     * {@link #bit bits} in {@code from}.
+     *
+     * @return the state moved from, or -1 if the current state was not allowed
+     */
+    int advance(int from, int to) {
+        while (true) {
+            int current = state.get();
+            if ((from & bit(current)) == 0) {
+                return -1;
+            }
+            if (state.compareAndSet(current, to)) {
+                return current;
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.lyokone.location
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.util.Log
+import java.net.MalformedURLException
+import java.net.URL
+import org.json.JSONException
+import org.json.JSONObject
+
+/**
+ * The part of a tracking session needed to resume it without Dart.
+ */
+data class PersistedSession(
+    val tracking: Boolean,
+    val priority: Int,
+    val intervalMillis: Long,
+    val fastestIntervalMillis: Long,
+    val distanceFilter: Float,
+    val foreground: Boolean,
+    val notificationOptions: NotificationOptions,
+)
+
+/**
+ * Keeps the [PersistedSession] and the upload configuration in a small
+ * private preferences file. Writes are applied asynchronously, so saving on
+ * every change is cheap.
+ */
+class SessionStore(context: Context) {
+    companion object {
+        private const val TAG = "SessionStore"
+        private const val PREFERENCES_NAME = "com.lyokone.location.session"
+
+        private const val KEY_TRACKING = "tracking"
+        private const val KEY_PRIORITY = "priority"
+        private const val KEY_INTERVAL = "interval"
+        private const val KEY_FASTEST_INTERVAL = "fastestInterval"
+        private const val KEY_DISTANCE_FILTER = "distanceFilter"
+        private const val KEY_FOREGROUND = "foreground"
+        private const val KEY_CHANNEL_NAME = "channelName"
+        private const val KEY_TITLE = "title"
+        private const val KEY_ICON_NAME = "iconName"
+        private const val KEY_SUBTITLE = "subtitle"
+        private const val KEY_DESCRIPTION = "description"
+        private const val KEY_COLOR = "color"
+        private const val KEY_ON_TAP_BRING_TO_FRONT = "onTapBringToFront"
+
+        private const val KEY_UPLOAD_ENDPOINT = "uploadEndpoint"
+        private const val KEY_UPLOAD_HEADERS = "uploadHeaders"
+        private const val KEY_UPLOAD_BATCH_SIZE = "uploadBatchSize"
+        private const val KEY_UPLOAD_BATCH_AGE = "uploadBatchAge"
+        private const val KEY_UPLOAD_MAX_SPOOL_BYTES = "uploadMaxSpoolBytes"
+        private const val KEY_UPLOAD_INITIAL_BACKOFF = "uploadInitialBackoff"
+        private const val KEY_UPLOAD_MAX_BACKOFF = "uploadMaxBackoff"
+    }
+
+    private val preferences: SharedPreferences =
+        context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+
+    fun load(): PersistedSession? {
+        if (!preferences.contains(KEY_TRACKING)) {
+            return null
+        }
+        return PersistedSession(
+            tracking = preferences.getBoolean(KEY_TRACKING, false),
+            priority = preferences.getInt(KEY_PRIORITY, 0),
+            intervalMillis = preferences.getLong(KEY_INTERVAL, 0),
+            fastestIntervalMillis = preferences.getLong(KEY_FASTEST_INTERVAL, 0),
+            distanceFilter = preferences.getFloat(KEY_DISTANCE_FILTER, 0f),
+            foreground = preferences.getBoolean(KEY_FOREGROUND, false),
+            notificationOptions =
+                NotificationOptions(
+                    channelName = preferences.getString(KEY_CHANNEL_NAME, null) ?: kDefaultChannelName,
+                    title = preferences.getString(KEY_TITLE, null) ?: kDefaultNotificationTitle,
+                    iconName = preferences.getString(KEY_ICON_NAME, null) ?: kDefaultNotificationIconName,
+                    subtitle = preferences.getString(KEY_SUBTITLE, null),
+                    description = preferences.getString(KEY_DESCRIPTION, null),
+                    color =
+                        if (preferences.contains(KEY_COLOR)) preferences.getInt(KEY_COLOR, 0) else null,
+                    onTapBringToFront = preferences.getBoolean(KEY_ON_TAP_BRING_TO_FRONT, false),
+                ),
+        )
+    }
+
+    fun save(session: PersistedSession) {
+        val options = session.notificationOptions
+        val editor =
+            preferences.edit()
+                .putBoolean(KEY_TRACKING, session.tracking)
+                .putInt(KEY_PRIORITY, session.priority)
+                .putLong(KEY_INTERVAL, session.intervalMillis)
+                .putLong(KEY_FASTEST_INTERVAL, session.fastestIntervalMillis)
+                .putFloat(KEY_DISTANCE_FILTER, session.distanceFilter)
+                .putBoolean(KEY_FOREGROUND, session.foreground)
+                .putString(KEY_CHANNEL_NAME, options.channelName)
+                .putString(KEY_TITLE, options.title)
+                .putString(KEY_ICON_NAME, options.iconName)
+                .putString(KEY_SUBTITLE, options.subtitle)
+                .putString(KEY_DESCRIPTION, options.description)
+                .putBoolean(KEY_ON_TAP_BRING_TO_FRONT, options.onTapBringToFront)
+        if (options.color != null) {
+            editor.putInt(KEY_COLOR, options.color)
+        } else {
+            editor.remove(KEY_COLOR)
+        }
+        editor.apply()
+    }
+
+    /** The upload configured in a previous process and not stopped since, if any. */
+    fun loadUpload(): LocationUploader.Config? {
+        val endpoint = preferences.getString(KEY_UPLOAD_ENDPOINT, null) ?: return null
+        val config = LocationUploader.Config()
+        try {
+            config.endpoint = URL(endpoint)
+            val headers = JSONObject(preferences.getString(KEY_UPLOAD_HEADERS, null) ?: "{}")
+            for (name in headers.keys()) {
+                config.headers[name] = headers.getString(name)
+            }
+        } catch (e: MalformedURLException) {
+            Log.e(TAG, "Dropping unreadable upload configuration.", e)
+            return null
+        } catch (e: JSONException) {
+            Log.e(TAG, "Dropping unreadable upload configuration.", e)
+            return null
+        }
+        config.maxBatchSize = preferences.getInt(KEY_UPLOAD_BATCH_SIZE, config.maxBatchSize)
+        config.maxBatchAgeMillis = preferences.getLong(KEY_UPLOAD_BATCH_AGE, config.maxBatchAgeMillis)
+        config.maxSpoolBytes = preferences.getLong(KEY_UPLOAD_MAX_SPOOL_BYTES, config.maxSpoolBytes)
+        config.initialBackoffMillis =
+            preferences.getLong(KEY_UPLOAD_INITIAL_BACKOFF, config.initialBackoffMillis)
+        config.maxBackoffMillis = preferences.getLong(KEY_UPLOAD_MAX_BACKOFF, config.maxBackoffMillis)
+        return config
+    }
+
+    /** Stores the upload configuration, headers included, or forgets it with null. */
+    fun saveUpload(config: LocationUploader.Config?) {
+        val editor = preferences.edit()
+        if (config == null) {
+            editor.remove(KEY_UPLOAD_ENDPOINT)
+                .remove(KEY_UPLOAD_HEADERS)
+                .remove(KEY_UPLOAD_BATCH_SIZE)
+                .remove(KEY_UPLOAD_BATCH_AGE)
+                .remove(KEY_UPLOAD_MAX_SPOOL_BYTES)
+                .remove(KEY_UPLOAD_INITIAL_BACKOFF)
+                .remove(KEY_UPLOAD_MAX_BACKOFF)
+                .apply()
+            return
+        }
+        editor.putString(KEY_UPLOAD_ENDPOINT, config.endpoint.toString())
+            .putString(KEY_UPLOAD_HEADERS, JSONObject(config.headers).toString())
+            .putInt(KEY_UPLOAD_BATCH_SIZE, config.maxBatchSize)
+            .putLong(KEY_UPLOAD_BATCH_AGE, config.maxBatchAgeMillis)
+            .putLong(KEY_UPLOAD_MAX_SPOOL_BYTES, config.maxSpoolBytes)
+            .putLong(KEY_UPLOAD_INITIAL_BACKOFF, config.initialBackoffMillis)
+            .putLong(KEY_UPLOAD_MAX_BACKOFF, config.maxBackoffMillis)
+            .apply()
+    }
+}
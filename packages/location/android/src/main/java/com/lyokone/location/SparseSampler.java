@@ -0,0 +1,319 @@
+package com.lyokone.location;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.json.JSONException;
+
+import com.google.android.gms.location.CurrentLocationRequest;
+import com.google.android.gms.location.FusedLocationProviderClient;
+import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.location.Priority;
+import com.google.android.gms.tasks.CancellationTokenSource;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.location.Location;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.core.app.ActivityCompat;
+
+/**
+ * Takes single fix samples on the slots planned by a {@link SampleScheduler},
+ * woken up by {@link AlarmManager} without a running location session.
+ * <p>
+ * Schedules are kept in preferences so they survive the process. At each
+ * wakeup one fix is acquired for all due schedules, retried until it meets
+ * the strictest accuracy target or the deadline passes, and either handed to
+ * the registered {@link SampleListener} or appended to the sample file read
+ * by {@link #getSamples}. The alarm for the next slot is then set. Samples
+ * taken while the app is in the background need the background location
+ * permission. Alarms do not survive a reboot or an app update;
+ * {@link SampleBootReceiver}, only enabled while a schedule exists, sets
+ * them again from the stored schedules.
+ * <p>
+ * The fix has to come within the wakeup's broadcast, so a deadline is at
+ * most {@link #MAX_DEADLINE_MILLIS}. A cold GNSS start may need longer, the
+ * sample then holds the best fix so far, if any.
+ * <p>
+ * A wakeup is exact when one of the schedules it serves asks for it. From
+ * Android 12 on this needs the {@code SCHEDULE_EXACT_ALARM} permission, which
+ * the app declares itself and the user may revoke. Without it the alarm
+ * falls back to the window of the coalesced slots, which Doze defers to its
+ * next maintenance window, with no upper bound while the device lies still.
+ */
+final class SparseSampler {
+    private static final String TAG = "SparseSampler";
+
+    private static final String PREFERENCES_NAME = "com.lyokone.location.sampling";
+    private static final String KEY_SCHEDULES = "schedules";
+    private static final String SAMPLES_FILE = "location_samples.csv";
+    private static final int REQUEST_CODE = 0x10CA;
+    // A broadcast receiver is given about ten seconds to finish, longer
+    // deadlines are rejected when scheduling
+    static final long MAX_DEADLINE_MILLIS = 9_000;
+
+    interface SampleListener {
+        void onSample(String scheduleId, Location location, boolean accuracyMet);
+    }
+
+    @Nullable
+    private static volatile SampleListener listener;
+
+    private SparseSampler() {
+    }
+
+    /** Receives the samples of delivering schedules instead of the sample file, while set. */
+    static void setListener(@Nullable SampleListener sampleListener) {
+        listener = sampleListener;
+    }
+
+    static synchronized void schedule(Context context, SampleScheduler.Schedule schedule) {
+        SampleScheduler scheduler = load(context);
+        scheduler.put(schedule, System.currentTimeMillis());
+        save(context, scheduler);
+        setAlarm(context, scheduler);
+    }
+
+    static synchronized void cancel(Context context, @Nullable String id) {
+        SampleScheduler scheduler = load(context);
+        if (id == null) {
+            scheduler.getSchedules().clear();
+        } else {
+            scheduler.remove(id);
+        }
+        save(context, scheduler);
+        setAlarm(context, scheduler);
+    }
+
+    /**
+     * Sets the alarm for the stored schedules again, after a reboot, an app
+     * update or a change of the exact alarm permission. A slot missed
+     * meanwhile is served right away, earlier ones are skipped.
+     */
+    static synchronized void rearm(Context context) {
+        setAlarm(context, load(context));
+    }
+
+    /** The stored samples, oldest first, optionally removing them. */
+    static synchronized List<HashMap<String, Object>> getSamples(Context context, boolean clear) throws IOException {
+        ArrayList<HashMap<String, Object>> samples = new ArrayList<>();
+        File file = new File(context.getFilesDir(), SAMPLES_FILE);
+        if (!file.exists()) {
+            return samples;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(",", 9);
+                // A line cut short by a crash is skipped
+                if (fields.length < 9) {
+                    continue;
+                }
+                try {
+                    HashMap<String, Object> sample = new HashMap<>();
+                    sample.put("time", Double.parseDouble(fields[0]));
+                    sample.put("latitude", Double.parseDouble(fields[1]));
+                    sample.put("longitude", Double.parseDouble(fields[2]));
+                    sample.put("accuracy", Double.parseDouble(fields[3]));
+                    sample.put("altitude", Double.parseDouble(fields[4]));
+                    sample.put("speed", Double.parseDouble(fields[5]));
+                    sample.put("heading", Double.parseDouble(fields[6]));
+                    sample.put("accuracyMet", "1".equals(fields[7]));
+                    sample.put("scheduleId", fields[8]);
+                    samples.add(sample);
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Skipping malformed sample: " + line);
+                }
+            }
+        }
+        if (clear && !file.delete()) {
+            Log.w(TAG, "Could not clear samples.");
+        }
+        return samples;
+    }
+
+    /** Runs a wakeup, called by {@link SampleAlarmReceiver}. */
+    static void onAlarm(Context context, BroadcastReceiver.PendingResult pendingResult) {
+        ArrayList<SampleScheduler.Schedule> due = new ArrayList<>();
+        synchronized (SparseSampler.class) {
+            SampleScheduler scheduler = load(context);
+            scheduler.collectDue(System.currentTimeMillis(), due);
+            save(context, scheduler);
+            setAlarm(context, scheduler);
+        }
+        if (due.isEmpty() || ActivityCompat.checkSelfPermission(context,
+                Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            pendingResult.finish();
+            return;
+        }
+
+        // The strictest requirements of the due schedules
+        int priority = Priority.PRIORITY_PASSIVE;
+        float accuracy = Float.MAX_VALUE;
+        long deadline = 0;
+        for (SampleScheduler.Schedule schedule : due) {
+            priority = Math.min(priority, schedule.priority);
+            accuracy = Math.min(accuracy, schedule.accuracyMeters);
+            deadline = Math.max(deadline, schedule.deadlineMillis);
+        }
+        long deadlineElapsed = SystemClock.elapsedRealtime() + deadline;
+        acquire(context.getApplicationContext(), LocationServices.getFusedLocationProviderClient(context),
+                priority, accuracy, deadlineElapsed, null, due, pendingResult);
+    }
+
+    @SuppressLint("MissingPermission")
+    private static void acquire(Context context, FusedLocationProviderClient client, int priority,
+                                float accuracy, long deadlineElapsed, @Nullable Location best,
+                                List<SampleScheduler.Schedule> due, BroadcastReceiver.PendingResult pendingResult) {
+        long remaining = deadlineElapsed - SystemClock.elapsedRealtime();
+        if (remaining <= 0) {
+            finish(context, best, accuracy, due, pendingResult);
+            return;
+        }
+        CurrentLocationRequest request = new CurrentLocationRequest.Builder()
+                .setPriority(priority)
+                .setDurationMillis(remaining)
+                // Only the first attempt may use a recent cached fix
+                .setMaxUpdateAgeMillis(best == null ? 30_000 : 0)
+                .build();
+        client.getCurrentLocation(request, new CancellationTokenSource().getToken())
+                .addOnCompleteListener(task -> {
+                    Location location = task.isSuccessful() ? task.getResult() : null;
+                    Location kept = best;
+                    if (location != null && (kept == null || location.getAccuracy() < kept.getAccuracy())) {
+                        kept = location;
+                    }
+                    if (location == null || kept.getAccuracy() <= accuracy) {
+                        finish(context, kept, accuracy, due, pendingResult);
+                    } else {
+                        acquire(context, client, priority, accuracy, deadlineElapsed, kept, due, pendingResult);
+                    }
+                });
+    }
+
+    private static void finish(Context context, @Nullable Location location, float accuracy,
+                               List<SampleScheduler.Schedule> due, BroadcastReceiver.PendingResult pendingResult) {
+        try {
+            if (location == null) {
+                Log.d(TAG, "No fix before the sample deadline.");
+                return;
+            }
+            boolean accuracyMet = location.getAccuracy() <= accuracy;
+            SampleListener sampleListener = listener;
+            StringBuilder lines = new StringBuilder();
+            for (SampleScheduler.Schedule schedule : due) {
+                if (schedule.deliver && sampleListener != null) {
+                    sampleListener.onSample(schedule.id, location, accuracyMet);
+                } else {
+                    lines.append(String.format(Locale.ROOT, "%d,%.7f,%.7f,%.1f,%.1f,%.2f,%.1f,%d,%s\n",
+                            location.getTime(), location.getLatitude(), location.getLongitude(),
+                            location.getAccuracy(), location.getAltitude(), location.getSpeed(),
+                            location.getBearing(), accuracyMet ? 1 : 0, schedule.id));
+                }
+            }
+            if (lines.length() > 0) {
+                appendSamples(context, lines);
+            }
+        } finally {
+            pendingResult.finish();
+        }
+    }
+
+    private static synchronized void appendSamples(Context context, CharSequence lines) {
+        File file = new File(context.getFilesDir(), SAMPLES_FILE);
+        try (FileOutputStream stream = new FileOutputStream(file, true);
+             Writer writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8)) {
+            writer.append(lines);
+            writer.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not store samples.", e);
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    private static void setAlarm(Context context, SampleScheduler scheduler) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        Intent intent = new Intent(context, SampleAlarmReceiver.class);
+        int flags = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? PendingIntent.FLAG_IMMUTABLE : 0;
+        PendingIntent alarm = PendingIntent.getBroadcast(context, REQUEST_CODE, intent,
+                flags | PendingIntent.FLAG_UPDATE_CURRENT);
+
+        long wakeup = scheduler.getWakeupMillis();
+        if (wakeup == Long.MAX_VALUE) {
+            alarmManager.cancel(alarm);
+            return;
+        }
+        boolean exact = scheduler.isWakeupExact();
+        boolean canBeExact = Build.VERSION.SDK_INT < Build.VERSION_CODES.S || alarmManager.canScheduleExactAlarms();
+        if (exact && canBeExact && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, wakeup, alarm);
+        } else if (exact && canBeExact) {
+            alarmManager.setExact(AlarmManager.RTC_WAKEUP, wakeup, alarm);
+        } else {
+            // Any time in the window serves every coalesced schedule
+            long start = Math.max(System.currentTimeMillis(), scheduler.getWindowStartMillis());
+            alarmManager.setWindow(AlarmManager.RTC_WAKEUP, start, Math.max(0, wakeup - start), alarm);
+        }
+    }
+
+    private static SharedPreferences preferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static SampleScheduler load(Context context) {
+        SampleScheduler scheduler = new SampleScheduler(new Random());
+        String stored = preferences(context).getString(KEY_SCHEDULES, null);
+        if (stored == null) {
+            return scheduler;
+        }
+        try {
+            scheduler.restoreJson(stored);
+        } catch (JSONException e) {
+            Log.e(TAG, "Dropping unreadable sampling schedules.", e);
+        }
+        return scheduler;
+    }
+
+    private static void save(Context context, SampleScheduler scheduler) {
+        preferences(context).edit()
+                .putString(KEY_SCHEDULES, scheduler.toJson())
+                .apply();
+        setBootReceiverEnabled(context, !scheduler.getSchedules().isEmpty());
+    }
+
+    /** The boot receiver is only enabled while there is an alarm to set again. */
+    private static void setBootReceiverEnabled(Context context, boolean enabled) {
+        PackageManager packageManager = context.getPackageManager();
+        ComponentName receiver = new ComponentName(context, SampleBootReceiver.class);
+        int state = enabled
+                ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                : PackageManager.COMPONENT_ENABLED_STATE_DEFAULT;
+        if (packageManager.getComponentEnabledSetting(receiver) != state) {
+            packageManager.setComponentEnabledSetting(receiver, state, PackageManager.DONT_KILL_APP);
+        }
+    }
+}
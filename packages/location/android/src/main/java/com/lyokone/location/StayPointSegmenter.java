@@ -0,0 +1,168 @@
+package com.lyokone.location;
+
+/**
+ * Incrementally splits a stream of fixes into trips and stay points.
+ * <p>
+ * A stay point is confirmed once consecutive fixes remain within
+ * {@code distanceMeters} of their running centroid for at least
+ * {@code durationMillis}. Only the running sums and bounds of the current
+ * candidate are kept, so the state is constant no matter how long the device
+ * stays put. It is not thread safe.
+ */
+final class StayPointSegmenter {
+
+    interface Listener {
+        /** The device left a stay point, or moved for the first time. */
+        void onTripStart(long timeMillis, double latitude, double longitude);
+
+        /** A stay point was confirmed, ending the trip that led to it. */
+        void onTripEnd(long startMillis, long endMillis, double distanceMeters,
+                       double latitude, double longitude);
+
+        /** The device left a confirmed stay point. */
+        void onStop(StayPoint stayPoint);
+    }
+
+    /** Summary of a finished stay, reused between events. */
+    static final class StayPoint {
+        double latitude;
+        double longitude;
+        long arrivalMillis;
+        long departureMillis;
+        int fixCount;
+        double minLatitude;
+        double minLongitude;
+        double maxLatitude;
+        double maxLongitude;
+
+        long dwellMillis() {
+            return departureMillis - arrivalMillis;
+        }
+    }
+
+    private final Listener listener;
+    private final StayPoint stayPoint = new StayPoint();
+    private double distanceMeters;
+    private long durationMillis;
+
+    // Current candidate cluster
+    private boolean hasCandidate;
+    private double sumLatitude;
+    private double sumLongitude;
+    private int count;
+    private double minLatitude;
+    private double minLongitude;
+    private double maxLatitude;
+    private double maxLongitude;
+    private long firstMillis;
+    private long lastMillis;
+    private boolean atStay;
+
+    // Current trip
+    private boolean inTrip;
+    private long tripStartMillis;
+    private double tripDistance;
+    private double lastLatitude;
+    private double lastLongitude;
+
+    StayPointSegmenter(double distanceMeters, long durationMillis, Listener listener) {
+        this.listener = listener;
+        configure(distanceMeters, durationMillis);
+    }
+
+    void configure(double distanceMeters, long durationMillis) {
+        this.distanceMeters = distanceMeters;
+        this.durationMillis = durationMillis;
+    }
+
+    /** Whether the last fix was inside a confirmed stay point. */
+    boolean isAtStay() {
+        return atStay;
+    }
+
+    void onFix(double latitude, double longitude, long timeMillis) {
+        if (!hasCandidate) {
+            startCandidate(latitude, longitude, timeMillis);
+            lastLatitude = latitude;
+            lastLongitude = longitude;
+            return;
+        }
+
+        if (inTrip) {
+            tripDistance += DeadReckoning.distanceMeters(lastLatitude, lastLongitude, latitude, longitude);
+        }
+        lastLatitude = latitude;
+        lastLongitude = longitude;
+
+        double centroidLatitude = sumLatitude / count;
+        double centroidLongitude = sumLongitude / count;
+        if (DeadReckoning.distanceMeters(centroidLatitude, centroidLongitude, latitude, longitude)
+                <= distanceMeters) {
+            addToCandidate(latitude, longitude, timeMillis);
+            if (!atStay && lastMillis - firstMillis >= durationMillis) {
+                atStay = true;
+                if (inTrip) {
+                    inTrip = false;
+                    listener.onTripEnd(tripStartMillis, firstMillis, tripDistance,
+                            sumLatitude / count, sumLongitude / count);
+                }
+            }
+            return;
+        }
+
+        long departureMillis = lastMillis;
+        if (atStay) {
+            fillStayPoint(departureMillis);
+            atStay = false;
+            listener.onStop(stayPoint);
+        }
+        if (!inTrip) {
+            inTrip = true;
+            tripStartMillis = departureMillis;
+            tripDistance = DeadReckoning.distanceMeters(centroidLatitude, centroidLongitude,
+                    latitude, longitude);
+            listener.onTripStart(departureMillis, centroidLatitude, centroidLongitude);
+        }
+        startCandidate(latitude, longitude, timeMillis);
+    }
+
+    void reset() {
+        hasCandidate = false;
+        atStay = false;
+        inTrip = false;
+    }
+
+    private void startCandidate(double latitude, double longitude, long timeMillis) {
+        hasCandidate = true;
+        sumLatitude = 0;
+        sumLongitude = 0;
+        count = 0;
+        minLatitude = maxLatitude = latitude;
+        minLongitude = maxLongitude = longitude;
+        firstMillis = timeMillis;
+        addToCandidate(latitude, longitude, timeMillis);
+    }
+
+    private void addToCandidate(double latitude, double longitude, long timeMillis) {
+        sumLatitude += latitude;
+        sumLongitude += longitude;
+        count++;
+        minLatitude = Math.min(minLatitude, latitude);
+        maxLatitude = Math.max(maxLatitude, latitude);
+        minLongitude = Math.min(minLongitude, longitude);
+        maxLongitude = Math.max(maxLongitude, longitude);
+        lastMillis = timeMillis;
+    }
+
+    private void fillStayPoint(long departureMillis) {
+        stayPoint.latitude = sumLatitude / count;
+        stayPoint.longitude = sumLongitude / count;
+        stayPoint.arrivalMillis = firstMillis;
+        stayPoint.departureMillis = departureMillis;
+        stayPoint.fixCount = count;
+        stayPoint.minLatitude = minLatitude;
+        stayPoint.minLongitude = minLongitude;
+        stayPoint.maxLatitude = maxLatitude;
+        stayPoint.maxLongitude = maxLongitude;
+    }
+}
@@ -1,5 +1,7 @@
 package com.lyokone.location;
 
+import java.util.List;
+import java.util.Map;
 
 import android.util.Log;
 
@@ -16,10 +18,34 @@ class StreamHandlerImpl implements StreamHandler {
     private FlutterLocation location;
     private EventChannel channel;
 
+    // The sink this engine registered on the shared session
+    @Nullable
+    private EventSink sink;
+
     private static final String STREAM_CHANNEL_NAME = "lyokone/locationstream";
 
+    // Asks the plugin to bind the location service, called on the first listen
+    @Nullable
+    private Runnable onServiceNeeded;
+
+    // A listen received before the location service was bound
+    @Nullable
+    private EventSink pendingSink;
+    @Nullable
+    private Object pendingArguments;
+
     void setLocation(@Nullable FlutterLocation location) {
         this.location = location;
+        if (location != null && pendingSink != null) {
+            EventSink sink = pendingSink;
+            pendingSink = null;
+            onListen(pendingArguments, sink);
+            pendingArguments = null;
+        }
+    }
+
+    void setOnServiceNeeded(@Nullable Runnable onServiceNeeded) {
+        this.onServiceNeeded = onServiceNeeded;
     }
 
     /**
@@ -47,11 +73,39 @@ class StreamHandlerImpl implements StreamHandler {
 
         channel.setStreamHandler(null);
         channel = null;
+
+        // The engine is going away without necessarily cancelling its stream
+        if (sink != null && location != null) {
+            location.removeLocationSink(sink);
+            sink = null;
+            location.stopRequestingLocation();
+        }
+        pendingSink = null;
     }
 
     @Override
     public void onListen(Object arguments, final EventSink eventsSink) {
-        location.events = eventsSink;
+        if (location == null) {
+            pendingArguments = arguments;
+            pendingSink = eventsSink;
+            if (onServiceNeeded != null) {
+                onServiceNeeded.run();
+            }
+            return;
+        }
+
+        final List<?> fields = parseFields(arguments);
+        int fieldMask = FlutterLocation.DEFAULT_FIELD_MASK;
+        if (fields != null) {
+            try {
+                fieldMask = LocationSerializer.parseMask(fields);
+            } catch (IllegalArgumentException e) {
+                eventsSink.error("INVALID_FIELDS", e.getMessage(), null);
+                return;
+            }
+        }
+        sink = eventsSink;
+        location.addLocationSink(eventsSink, fieldMask);
 
         if (!location.checkPermissions()) {
             location.requestPermissions();
@@ -60,9 +114,35 @@ class StreamHandlerImpl implements StreamHandler {
         location.startRequestingLocation();
     }
 
+    /**
+     * The listen arguments are either the list of field names itself or a map
+     * holding it under {@code fields}.
+     */
+    @Nullable
+    private static List<?> parseFields(Object arguments) {
+        if (arguments instanceof List) {
+            return (List<?>) arguments;
+        }
+        if (arguments instanceof Map) {
+            Object fields = ((Map<?, ?>) arguments).get("fields");
+            if (fields instanceof List) {
+                return (List<?>) fields;
+            }
+        }
+        return null;
+    }
+
     @Override
     public void onCancel(Object arguments) {
-        location.mFusedLocationClient.removeLocationUpdates(location.mLocationCallback);
-        location.events = null;
+        if (location == null) {
+            pendingSink = null;
+            pendingArguments = null;
+            return;
+        }
+        if (sink != null) {
+            location.removeLocationSink(sink);
+            sink = null;
+        }
+        location.stopRequestingLocation();
     }
 }
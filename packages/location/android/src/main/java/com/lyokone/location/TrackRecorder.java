@@ -0,0 +1,355 @@
+package com.lyokone.location;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records fixes to a GPX, GeoJSON or binary file from a background thread.
+ * <p>
+ * Fixes are collected in memory and appended every {@code flushIntervalMillis},
+ * followed by the closing trailer of the document and an fsync. The next
+ * flush writes over that trailer, so between flushes the file on disk is
+ * always a complete document. The binary format is the streaming variant of
+ * the {@link FixBatch} encoding, which has no trailer.
+ * <p>
+ * The file is only touched on the worker thread, from {@link #start} until
+ * {@link #stop}; both report back through a {@link Callback}. Fixes received
+ * before the file is open are written with the first flush.
+ * <p>
+ * Only the JDK is used, so it can run on the JVM.
+ */
+final class TrackRecorder {
+    static final int FORMAT_GPX = 0;
+    static final int FORMAT_GEOJSON = 1;
+    static final int FORMAT_BINARY = 2;
+
+    private static final String[] FORMAT_NAMES = {"gpx", "geojson", "binary"};
+
+    private static final String GPX_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<gpx version=\"1.1\" creator=\"location\" xmlns=\"http://www.topografix.com/GPX/1/1\">\n"
+            + "<trk><trkseg>\n";
+    private static final String GPX_TRAILER = "</trkseg></trk>\n</gpx>\n";
+    private static final String GEOJSON_HEADER =
+            "{\"type\":\"Feature\",\"geometry\":{\"type\":\"LineString\",\"coordinates\":[";
+
+    /** Called on the worker thread, with the error if the operation failed. */
+    interface Callback<T> {
+        void onComplete(T value, IOException error);
+    }
+
+    /** Opens the file for writing, replaced in tests to simulate a failing disk. */
+    interface Opener {
+        RandomAccessFile open(File file) throws IOException;
+    }
+
+    private final File file;
+    private final Opener opener;
+    private final int format;
+    private final long flushIntervalMillis;
+    private final ScheduledThreadPoolExecutor executor;
+
+    // Guarded by this, swapped with written on each flush
+    private FixBatch pending = new FixBatch(64);
+
+    // Only touched from the executor thread
+    private RandomAccessFile output;
+    private FixBatch written = new FixBatch(64);
+    private final ByteArrayOutputStream scratch = new ByteArrayOutputStream();
+    private final StringBuilder text = new StringBuilder();
+    private final long[] fix = new long[FixBatch.FIELDS];
+    private final long[] previous = new long[FixBatch.FIELDS];
+    private final SimpleDateFormat timeFormat;
+    private long bodyEnd;
+
+    // Written from the executor thread, read from anywhere for getStats
+    private volatile long fixCount;
+    private volatile double distanceMeters;
+    private volatile long startMillis;
+    private volatile long endMillis;
+    private volatile String lastError;
+
+    TrackRecorder(File file, int format, long flushIntervalMillis) {
+        this(file, format, flushIntervalMillis, target -> new RandomAccessFile(target, "rw"));
+    }
+
+    TrackRecorder(File file, int format, long flushIntervalMillis, Opener opener) {
+        this.file = file;
+        this.opener = opener;
+        this.format = format;
+        this.flushIntervalMillis = flushIntervalMillis;
+
+        timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+        timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        this.executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "TrackRecorder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    static int parseFormat(String name) {
+        for (int i = 0; i < FORMAT_NAMES.length; i++) {
+            if (FORMAT_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown recording format: " + name);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    void onFix(long timeMillis, double latitude, double longitude, double altitude, double accuracy,
+               double speed, double bearing) {
+        synchronized (this) {
+            pending.add(timeMillis, latitude, longitude, altitude, accuracy, speed, bearing);
+        }
+    }
+
+    /** Creates the file, writes an empty but complete document and starts flushing. */
+    void start(Callback<File> callback) {
+        try {
+            executor.execute(() -> {
+                try {
+                    File parent = file.getParentFile();
+                    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                        throw new IOException("Could not create directory " + parent);
+                    }
+                    output = opener.open(file);
+                    output.setLength(0);
+                    writeHeader();
+                    write();
+                } catch (IOException e) {
+                    lastError = "Could not create recording: " + e.getMessage();
+                    callback.onComplete(null, e);
+                    return;
+                }
+                executor.scheduleWithFixedDelay(() -> {
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        // Kept in lastError, the next flush writes the body again
+                    }
+                }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+                callback.onComplete(file, null);
+            });
+        } catch (RejectedExecutionException e) {
+            callback.onComplete(null, new IOException("The recording was stopped"));
+        }
+    }
+
+    /**
+     * Writes the pending fixes, closes the file and stops the worker thread,
+     * then hands over the statistics of the finished recording. The error is
+     * set if that last write failed, the file then misses fixes or its
+     * trailer.
+     */
+    void stop(Callback<Map<String, Object>> callback) {
+        try {
+            executor.execute(() -> {
+                IOException error = null;
+                try {
+                    if (output != null) {
+                        try {
+                            flush();
+                        } finally {
+                            output.close();
+                            output = null;
+                        }
+                    }
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    // Only from the worker itself, so the tasks queued before this one still run
+                    executor.shutdown();
+                }
+                callback.onComplete(getStats(), error);
+            });
+        } catch (RejectedExecutionException e) {
+            callback.onComplete(getStats(), null);
+        }
+    }
+
+    Map<String, Object> getStats() {
+        HashMap<String, Object> stats = new HashMap<>();
+        stats.put("path", file.getAbsolutePath());
+        stats.put("format", FORMAT_NAMES[format]);
+        stats.put("fixCount", (double) fixCount);
+        stats.put("bytes", (double) file.length());
+        stats.put("distance", distanceMeters);
+        stats.put("startTime", fixCount > 0 ? (double) startMillis : null);
+        stats.put("endTime", fixCount > 0 ? (double) endMillis : null);
+        stats.put("lastError", lastError);
+        return stats;
+    }
+
+    private void flush() throws IOException {
+        if (output == null) {
+            return;
+        }
+        synchronized (this) {
+            FixBatch full = pending;
+            pending = written;
+            written = full;
+        }
+        // Nothing new, and no body left over by a failed write
+        if (written.size() == 0 && scratch.size() == 0) {
+            return;
+        }
+        try {
+            for (int i = 0; i < written.size(); i++) {
+                written.get(i, fix);
+                writeFix();
+            }
+            write();
+        } catch (IOException e) {
+            lastError = "Could not write recording: " + e.getMessage();
+            throw e;
+        } finally {
+            written.clear();
+        }
+    }
+
+    private void writeHeader() {
+        switch (format) {
+            case FORMAT_GPX:
+                text.append(GPX_HEADER);
+                break;
+            case FORMAT_GEOJSON:
+                text.append(GEOJSON_HEADER);
+                break;
+            default:
+                scratch.write(FixBatch.MAGIC, 0, FixBatch.MAGIC.length);
+                scratch.write(FixBatch.STREAM_VERSION);
+                break;
+        }
+    }
+
+    private void writeFix() throws IOException {
+        long count = fixCount;
+        if (count == 0) {
+            startMillis = fix[0];
+        } else {
+            distanceMeters += DeadReckoning.distanceMeters(previous[1] / 1e7, previous[2] / 1e7,
+                    fix[1] / 1e7, fix[2] / 1e7);
+        }
+        endMillis = fix[0];
+
+        switch (format) {
+            case FORMAT_GPX:
+                text.append("<trkpt lat=\"");
+                appendFixed(fix[1], 7);
+                text.append("\" lon=\"");
+                appendFixed(fix[2], 7);
+                text.append("\"><ele>");
+                appendFixed(fix[3], 2);
+                text.append("</ele><time>").append(timeFormat.format(new Date(fix[0])))
+                        .append("</time></trkpt>\n");
+                System.arraycopy(fix, 0, previous, 0, FixBatch.FIELDS);
+                break;
+            case FORMAT_GEOJSON:
+                if (count > 0) {
+                    text.append(',');
+                }
+                text.append('[');
+                appendFixed(fix[2], 7);
+                text.append(',');
+                appendFixed(fix[1], 7);
+                text.append(',');
+                appendFixed(fix[3], 2);
+                text.append(']');
+                System.arraycopy(fix, 0, previous, 0, FixBatch.FIELDS);
+                break;
+            default:
+                FixBatch.writeDeltas(scratch, fix, 0, previous);
+                break;
+        }
+        fixCount = count + 1;
+    }
+
+    /**
+     * Appends the buffered body at the end of the previous one, then the
+     * trailer, and syncs the file. If that fails, the body is kept and
+     * written again by the next call.
+     */
+    private void write() throws IOException {
+        if (text.length() > 0) {
+            byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+            scratch.write(bytes, 0, bytes.length);
+            text.setLength(0);
+        }
+        int bodyLength = scratch.size();
+        boolean written = false;
+        try {
+            writeTrailerAndSync(bodyLength);
+            written = true;
+        } finally {
+            byte[] body = written ? null : scratch.toByteArray();
+            text.setLength(0);
+            scratch.reset();
+            if (body != null) {
+                scratch.write(body, 0, bodyLength);
+            }
+        }
+    }
+
+    private void writeTrailerAndSync(int bodyLength) throws IOException {
+        switch (format) {
+            case FORMAT_GPX:
+                text.append(GPX_TRAILER);
+                break;
+            case FORMAT_GEOJSON:
+                text.append("]},\"properties\":{\"fixCount\":").append(fixCount);
+                if (fixCount > 0) {
+                    text.append(",\"startTime\":").append(startMillis)
+                            .append(",\"endTime\":").append(endMillis);
+                }
+                text.append(",\"distance\":").append(Math.round(distanceMeters)).append("}}\n");
+                break;
+            default:
+                break;
+        }
+        byte[] trailer = text.toString().getBytes(StandardCharsets.UTF_8);
+        text.setLength(0);
+        scratch.write(trailer, 0, trailer.length);
+
+        output.seek(bodyEnd);
+        output.write(scratch.toByteArray());
+        output.setLength(output.getFilePointer());
+        output.getFD().sync();
+        bodyEnd += bodyLength;
+    }
+
+    /** Appends {@code value / 10^decimals} without going through a double. */
+    private void appendFixed(long value, int decimals) {
+        if (value < 0) {
+            text.append('-');
+            value = -value;
+        }
+        long scale = 1;
+        for (int i = 0; i < decimals; i++) {
+            scale *= 10;
+        }
+        text.append(value / scale).append('.');
+        String fraction = Long.toString(value % scale);
+        for (int i = fraction.length(); i < decimals; i++) {
+            text.append('0');
+        }
+        text.append(fraction);
+    }
+}
@@ -0,0 +1,96 @@
+package com.lyokone.location;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+/**
+ * Runs a {@link CellAggregator} into a {@link CellBatch}. Cells are geohashes
+ * of length 5, a degree of longitude apart along the equator.
+ */
+public class CellBatchTest {
+    private static final int MAX_CELLS = 2;
+
+    private final CellBatch batch = new CellBatch(MAX_CELLS);
+    private final CellAggregator aggregator = new CellAggregator(CellAggregator.SCHEME_GEOHASH, 5, MAX_CELLS,
+            60_000, batch);
+
+    @Test
+    public void undrainedBatchStaysCapped() {
+        for (int i = 0; i < 10_000; i++) {
+            fix(i % 100, i * 1000L);
+            assertTrue(batch.size() <= MAX_CELLS);
+        }
+        aggregator.flush();
+        assertTrue(batch.size() <= 2 * MAX_CELLS);
+    }
+
+    @Test
+    public void revisitedCellStartsOver() {
+        fix(0, 0);
+        fix(0, 10_000);
+        fix(1, 20_000);
+        // Evicts cell 0 with 20 s
+        fix(2, 30_000);
+        // Evicts cell 1, cell 0 starts over
+        fix(0, 40_000);
+        fix(0, 50_000);
+        aggregator.flush();
+
+        ArrayList<HashMap<String, Object>> cells = batch.drain(aggregator);
+        assertEquals(4, cells.size());
+        assertCell(cells.get(0), 0, 20_000, 2, true);
+        assertCell(cells.get(1), 1, 10_000, 1, true);
+        assertCell(cells.get(2), 2, 10_000, 1, false);
+        assertCell(cells.get(3), 0, 10_000, 2, false);
+        assertEquals(0, batch.size());
+    }
+
+    @Test
+    public void evictionsOfOneCellAreMerged() {
+        CellBatch batch = new CellBatch(4);
+        CellAggregator aggregator = new CellAggregator(CellAggregator.SCHEME_GEOHASH, 5, 1, 60_000, batch);
+        // Each visit evicts the other cell
+        for (int i = 0; i < 5; i++) {
+            aggregator.onFix(0.5, 0.5 + i % 2, 10, i * 10_000L);
+        }
+
+        ArrayList<HashMap<String, Object>> cells = batch.drain(aggregator);
+        assertEquals(2, cells.size());
+        assertCell(cells.get(0), 0, 20_000, 2, true);
+        assertCell(cells.get(1), 1, 20_000, 2, true);
+    }
+
+    @Test
+    public void laterFlushSupersedes() {
+        fix(0, 0);
+        aggregator.flush();
+        fix(0, 10_000);
+        aggregator.flush();
+
+        ArrayList<HashMap<String, Object>> cells = batch.drain(aggregator);
+        assertEquals(1, cells.size());
+        assertCell(cells.get(0), 0, 10_000, 2, false);
+    }
+
+    private void fix(int cell, long timeMillis) {
+        aggregator.onFix(0.5, 0.5 + cell, 10, timeMillis);
+    }
+
+    private String cellId(int cell) {
+        return aggregator.cellId(CellAggregator.geohash(0.5, 0.5 + cell, 5));
+    }
+
+    private void assertCell(HashMap<String, Object> event, int cell, long dwellMillis, int count,
+                            boolean evicted) {
+        assertEquals(cellId(cell), event.get("cell"));
+        assertEquals((double) dwellMillis, event.get("dwellTime"));
+        assertEquals(count, event.get("count"));
+        assertEquals(10.0, (double) event.get("accuracy"), 1e-9);
+        assertEquals(evicted, event.get("evicted"));
+    }
+}
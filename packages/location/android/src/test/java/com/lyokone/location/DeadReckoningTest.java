@@ -0,0 +1,193 @@
+package com.lyokone.location;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Replays sensor and GNSS traces through {@link DeadReckoning}.
+ * <p>
+ * Traces are CSV files under {@code traces/}, one sample per line in time
+ * order, {@code #} starting a comment:
+ * <pre>
+ * fix,nanos,latitude,longitude,accuracy,speed,bearing   (bearing empty if unknown)
+ * heading,nanos,azimuthRadians
+ * step,nanos
+ * accel,nanos,x,y,z
+ * </pre>
+ * Only every n-th fix is fed to the filter. The fixes held out are the
+ * reference the estimates are compared against, along with the naive
+ * estimate of repeating the last fix.
+ */
+public class DeadReckoningTest {
+    private static final class Sample {
+        String type;
+        long nanos;
+        double[] values;
+    }
+
+    private static final class Replay {
+        int estimates;
+        double meanError;
+        double maxError;
+        double meanLastFixError;
+        final List<double[]> positions = new ArrayList<>();
+    }
+
+    @Test
+    public void walkingFollowsStepsBetweenFixes() throws IOException {
+        Replay replay = replay(load("walk.csv"), 15, new DeadReckoning());
+
+        assertTrue(replay.estimates > 80);
+        assertTrue("mean error " + replay.meanError, replay.meanError < 6);
+        assertTrue("max error " + replay.maxError, replay.maxError < 15);
+        assertTrue(replay.meanError < replay.meanLastFixError / 2);
+    }
+
+    @Test
+    public void drivingFollowsCourseOverGround() throws IOException {
+        // The phone faces away from the road, only the fix bearing gives the course
+        Replay replay = replay(load("drive.csv"), 10, new DeadReckoning());
+
+        assertTrue(replay.estimates > 60);
+        assertTrue("mean error " + replay.meanError, replay.meanError < 8);
+        assertTrue(replay.meanError < replay.meanLastFixError / 4);
+    }
+
+    @Test
+    public void replayIsDeterministic() throws IOException {
+        List<Sample> trace = load("walk.csv");
+        Replay first = replay(trace, 15, new DeadReckoning());
+        Replay second = replay(trace, 15, new DeadReckoning());
+
+        assertEquals(first.positions.size(), second.positions.size());
+        for (int i = 0; i < first.positions.size(); i++) {
+            assertEquals(first.positions.get(i)[0], second.positions.get(i)[0], 0);
+            assertEquals(first.positions.get(i)[1], second.positions.get(i)[1], 0);
+        }
+    }
+
+    @Test
+    public void stationaryDeviceDoesNotDrift() {
+        DeadReckoning deadReckoning = new DeadReckoning();
+        deadReckoning.onFix(48.1, 11.5, 5, 12, 90, true, 0);
+        for (long nanos = 0; nanos <= 10_000_000_000L; nanos += 100_000_000L) {
+            deadReckoning.onAcceleration(0, 0, 9.80665, nanos);
+        }
+
+        DeadReckoning.Estimate estimate = new DeadReckoning.Estimate();
+        assertTrue(deadReckoning.estimate(10_000_000_000L, estimate));
+        assertEquals(0, estimate.speed, 0);
+        // Only the first samples, before the device was known to be at rest, moved it
+        assertTrue(DeadReckoning.distanceMeters(48.1, 11.5, estimate.latitude, estimate.longitude) < 20);
+    }
+
+    @Test
+    public void confidenceDecaysUntilTheHorizon() {
+        DeadReckoning deadReckoning = new DeadReckoning();
+        deadReckoning.setMaxPropagationMillis(10_000);
+        deadReckoning.onFix(48.1, 11.5, 5, 1, 0, true, 0);
+
+        DeadReckoning.Estimate estimate = new DeadReckoning.Estimate();
+        double previousConfidence = 1;
+        double previousAccuracy = 0;
+        for (long nanos = 1_000_000_000L; nanos <= 10_000_000_000L; nanos += 1_000_000_000L) {
+            assertTrue(deadReckoning.estimate(nanos, estimate));
+            assertTrue(estimate.confidence < previousConfidence);
+            assertTrue(estimate.accuracy > previousAccuracy);
+            previousConfidence = estimate.confidence;
+            previousAccuracy = estimate.accuracy;
+        }
+        assertFalse(deadReckoning.estimate(10_000_000_001L, estimate));
+    }
+
+    @Test
+    public void stepLengthIsCalibratedFromFixes() throws IOException {
+        DeadReckoning deadReckoning = new DeadReckoning();
+        replay(load("walk.csv"), 15, deadReckoning);
+
+        // The trace was walked with 0.75 m steps, starting from the 0.7 m default
+        assertEquals(0.75, deadReckoning.getStepLength(), 0.03);
+    }
+
+    private static Replay replay(List<Sample> trace, int fixEvery, DeadReckoning deadReckoning) {
+        Replay replay = new Replay();
+        DeadReckoning.Estimate estimate = new DeadReckoning.Estimate();
+        double lastLatitude = Double.NaN;
+        double lastLongitude = Double.NaN;
+        int fixIndex = 0;
+        double errorSum = 0;
+        double lastFixErrorSum = 0;
+        for (Sample sample : trace) {
+            double[] v = sample.values;
+            switch (sample.type) {
+                case "fix":
+                    if (fixIndex++ % fixEvery == 0) {
+                        deadReckoning.onFix(v[0], v[1], v[2], v[3], Double.isNaN(v[4]) ? 0 : v[4],
+                                !Double.isNaN(v[4]), sample.nanos);
+                        lastLatitude = v[0];
+                        lastLongitude = v[1];
+                    } else if (deadReckoning.estimate(sample.nanos, estimate)) {
+                        double error = DeadReckoning.distanceMeters(v[0], v[1], estimate.latitude,
+                                estimate.longitude);
+                        replay.estimates++;
+                        errorSum += error;
+                        replay.maxError = Math.max(replay.maxError, error);
+                        lastFixErrorSum += DeadReckoning.distanceMeters(v[0], v[1], lastLatitude, lastLongitude);
+                        replay.positions.add(new double[]{estimate.latitude, estimate.longitude});
+                    }
+                    break;
+                case "heading":
+                    deadReckoning.onHeading(v[0], sample.nanos);
+                    break;
+                case "step":
+                    deadReckoning.onStep(sample.nanos);
+                    break;
+                case "accel":
+                    deadReckoning.onAcceleration(v[0], v[1], v[2], sample.nanos);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown sample type " + sample.type);
+            }
+        }
+        replay.meanError = errorSum / replay.estimates;
+        replay.meanLastFixError = lastFixErrorSum / replay.estimates;
+        return replay;
+    }
+
+    private static List<Sample> load(String name) throws IOException {
+        ArrayList<Sample> trace = new ArrayList<>();
+        InputStream in = DeadReckoningTest.class.getClassLoader().getResourceAsStream("traces/" + name);
+        if (in == null) {
+            throw new IOException("Missing trace " + name);
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",", -1);
+                Sample sample = new Sample();
+                sample.type = fields[0];
+                sample.nanos = Long.parseLong(fields[1]);
+                sample.values = new double[fields.length - 2];
+                for (int i = 2; i < fields.length; i++) {
+                    sample.values[i - 2] = fields[i].isEmpty() ? Double.NaN : Double.parseDouble(fields[i]);
+                }
+                trace.add(sample);
+            }
+        }
+        return trace;
+    }
+}
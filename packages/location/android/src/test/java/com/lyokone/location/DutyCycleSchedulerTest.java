@@ -0,0 +1,124 @@
+package com.lyokone.location;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Runs {@link DutyCycleScheduler} against a simulated clock. */
+public class DutyCycleSchedulerTest {
+    private long now;
+    private final DutyCycleScheduler scheduler = new DutyCycleScheduler(() -> now);
+
+    @Test
+    public void alternatesBurstsAndRests() {
+        scheduler.configure(0.25, 15_000, 60_000, DutyCycleScheduler.LOW_POWER, 0);
+        assertEquals(DutyCycleScheduler.HIGH_ACCURACY, scheduler.start());
+        assertEquals(15_000, scheduler.getNextTransitionMillis());
+
+        now = 14_999;
+        assertFalse(scheduler.advance());
+        now = 15_000;
+        assertTrue(scheduler.advance());
+        assertEquals(DutyCycleScheduler.LOW_POWER, scheduler.getPriority());
+        assertEquals(60_000, scheduler.getNextTransitionMillis());
+
+        now = 60_000;
+        assertTrue(scheduler.advance());
+        assertEquals(DutyCycleScheduler.HIGH_ACCURACY, scheduler.getPriority());
+    }
+
+    @Test
+    public void accountingFollowsTheDutyCycle() {
+        scheduler.configure(0.25, 15_000, 60_000, DutyCycleScheduler.LOW_POWER, 0);
+        scheduler.start();
+        for (now = 0; now <= 3_600_000; now += 1000) {
+            scheduler.advance();
+        }
+        now = 3_600_000;
+
+        assertEquals(900_000, scheduler.getOnTimeMillis(DutyCycleScheduler.HIGH_ACCURACY));
+        assertEquals(2_700_000, scheduler.getOnTimeMillis(DutyCycleScheduler.LOW_POWER));
+        // 30 mA a quarter of the time, 2 mA otherwise
+        assertEquals(0.25 * 30 + 0.75 * 2, scheduler.getEstimatedMilliampHours(), 1e-9);
+        assertEquals(0.25, (double) scheduler.getAccounting().get("dutyCycle"), 1e-9);
+    }
+
+    @Test
+    public void budgetMapsToDutyCycle() {
+        assertEquals((10.0 - 2) / (30 - 2),
+                scheduler.dutyCycleForBudget(10, DutyCycleScheduler.LOW_POWER), 1e-9);
+        assertEquals(0, scheduler.dutyCycleForBudget(1, DutyCycleScheduler.LOW_POWER), 0);
+        assertEquals(1, scheduler.dutyCycleForBudget(100, DutyCycleScheduler.LOW_POWER), 0);
+    }
+
+    @Test
+    public void freshnessWinsOverTheBudget() {
+        scheduler.configure(0.01, 15_000, 60_000, DutyCycleScheduler.NO_POWER, 0);
+        scheduler.start();
+
+        assertEquals(true, scheduler.getAccounting().get("overBudget"));
+        assertEquals(15_000.0, scheduler.getAccounting().get("burstDuration"));
+        assertEquals(45_000.0, scheduler.getAccounting().get("restDuration"));
+    }
+
+    @Test
+    public void accurateFixEndsTheBurst() {
+        scheduler.configure(0.25, 15_000, 60_000, DutyCycleScheduler.LOW_POWER, 20);
+        scheduler.start();
+        assertEquals(20, scheduler.getBurstTargetAccuracy(), 0);
+
+        now = 4_000;
+        assertFalse(scheduler.onFix(25));
+        assertTrue(scheduler.onFix(12));
+        assertEquals(4_000, scheduler.getNextTransitionMillis());
+        assertTrue(scheduler.advance());
+        assertEquals(DutyCycleScheduler.LOW_POWER, scheduler.getPriority());
+
+        // Resting, no fix ends anything
+        assertEquals(0, scheduler.getBurstTargetAccuracy(), 0);
+        assertFalse(scheduler.endBurst());
+        assertEquals(4_000, scheduler.getOnTimeMillis(DutyCycleScheduler.HIGH_ACCURACY));
+    }
+
+    @Test
+    public void burstWithoutRestNeverEnds() {
+        scheduler.configure(1, 15_000, 60_000, DutyCycleScheduler.LOW_POWER, 20);
+        scheduler.start();
+
+        assertEquals(0, scheduler.getBurstTargetAccuracy(), 0);
+        assertFalse(scheduler.endBurst());
+    }
+
+    @Test
+    public void pauseStopsAccounting() {
+        scheduler.configure(0.25, 15_000, 60_000, DutyCycleScheduler.LOW_POWER, 0);
+        scheduler.start();
+        now = 10_000;
+        scheduler.pause();
+        now = 100_000;
+        assertFalse(scheduler.advance());
+        assertEquals(0, scheduler.getBurstTargetAccuracy(), 0);
+
+        assertEquals(10_000, scheduler.getOnTimeMillis(DutyCycleScheduler.HIGH_ACCURACY));
+        assertEquals("paused", scheduler.getAccounting().get("phase"));
+
+        // Resuming starts with a fresh burst
+        assertEquals(DutyCycleScheduler.HIGH_ACCURACY, scheduler.start());
+        assertEquals(115_000, scheduler.getNextTransitionMillis());
+    }
+
+    @Test
+    public void reconfiguringRestartsTheCycle() {
+        scheduler.configure(0.25, 15_000, 60_000, DutyCycleScheduler.LOW_POWER, 0);
+        scheduler.start();
+        now = 20_000;
+        scheduler.advance();
+        assertEquals(DutyCycleScheduler.LOW_POWER, scheduler.getPriority());
+
+        scheduler.configure(0.5, 10_000, 30_000, DutyCycleScheduler.BALANCED, 0);
+        assertEquals(DutyCycleScheduler.HIGH_ACCURACY, scheduler.getPriority());
+        assertEquals(35_000, scheduler.getNextTransitionMillis());
+    }
+}
@@ -0,0 +1,67 @@
+package com.lyokone.location;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/** Feeds walks north of a fixed origin into {@link LiveTrackingState}. */
+public class LiveTrackingStateTest {
+    private static final double ORIGIN_LATITUDE = 48.1;
+    private static final double ORIGIN_LONGITUDE = 11.5;
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * 6_371_008.8;
+
+    @Test
+    public void stepsShorterThanTheAccuracyAddUp() {
+        LiveTrackingState state = new LiveTrackingState(ORIGIN_LATITUDE + 2000 / METERS_PER_DEGREE,
+                ORIGIN_LONGITUDE);
+        // 1.4 m every second with 10 m accuracy, 500 m in all
+        for (int i = 0; i <= 357; i++) {
+            fix(state, i * 1.4, 10, i * 1000L);
+        }
+
+        assertEquals(500, state.getDistanceMeters(), 11);
+        Long eta = state.etaMillis();
+        assertNotNull(eta);
+        // 1500 m left at 1.4 m/s
+        assertEquals(1500 / 1.4 * 1000, eta, 15_000);
+    }
+
+    @Test
+    public void jitterWhileStandingIsNoDistance() {
+        LiveTrackingState state = new LiveTrackingState(ORIGIN_LATITUDE + 2000 / METERS_PER_DEGREE,
+                ORIGIN_LONGITUDE);
+        for (int i = 0; i < 600; i++) {
+            fix(state, (i % 2) * 8, 10, i * 1000L);
+        }
+
+        assertEquals(0, state.getDistanceMeters(), 0);
+        assertNull(state.etaMillis());
+    }
+
+    @Test
+    public void stopIsNoMovingTime() {
+        LiveTrackingState state = new LiveTrackingState(ORIGIN_LATITUDE + 2000 / METERS_PER_DEGREE,
+                ORIGIN_LONGITUDE);
+        long time = 0;
+        for (int i = 0; i <= 100; i++) {
+            fix(state, i * 1.4, 10, time += 1000);
+        }
+        // Ten minutes at a crossing, then walking on
+        time += 600_000;
+        for (int i = 101; i <= 200; i++) {
+            fix(state, i * 1.4, 10, time += 1000);
+        }
+
+        assertEquals(280, state.getDistanceMeters(), 11);
+        Long eta = state.etaMillis();
+        assertNotNull(eta);
+        // Moving speed stays close to 1.4 m/s, at worst slowed by one step at 0.5 m/s
+        assertEquals(1720 / 1.4 * 1000, eta, 200_000);
+    }
+
+    private static void fix(LiveTrackingState state, double north, double accuracy, long timeMillis) {
+        state.onFix(ORIGIN_LATITUDE + north / METERS_PER_DEGREE, ORIGIN_LONGITUDE, 0, accuracy, 1.4, timeMillis);
+    }
+}
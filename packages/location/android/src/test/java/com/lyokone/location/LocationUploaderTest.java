@@ -0,0 +1,262 @@
+package com.lyokone.location;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs {@link LocationUploader} against a local HTTP server. Each fix is
+ * given a distinct time, so the decoded batches tell which fixes arrived and
+ * how often.
+ */
+public class LocationUploaderTest {
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private HttpServer server;
+    private File spool;
+    // Each request answers with the next status, the last one repeating
+    private volatile int[] statuses = {200};
+    private volatile long delayMillis;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final List<long[]> batches = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        spool = Files.createTempDirectory("spool").toFile();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/fixes", exchange -> {
+            int request = requests.getAndIncrement();
+            byte[] body = readAll(exchange.getRequestBody());
+            int status = statuses[Math.min(request, statuses.length - 1)];
+            if (status == 200) {
+                long[] times = decodeTimes(body);
+                synchronized (batches) {
+                    batches.add(times);
+                }
+            }
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        File[] files = spool.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        spool.delete();
+    }
+
+    @Test
+    public void batchesNeverExceedMaxBatchSize() throws Exception {
+        LocationUploader uploader = new LocationUploader(config(10), spool);
+        addFixes(uploader, 0, 35);
+        uploader.flush();
+
+        awaitFixes(35);
+        uploader.close();
+        synchronized (batches) {
+            assertEquals(4, batches.size());
+            for (long[] batch : batches) {
+                assertTrue(batch.length <= 10);
+            }
+            assertEquals(5, batches.get(3).length);
+        }
+        assertUniqueFixes(35);
+    }
+
+    @Test
+    public void serverErrorsAreRetriedWithBackoff() throws Exception {
+        statuses = new int[]{503, 503, 200};
+        LocationUploader uploader = new LocationUploader(config(10), spool);
+        addFixes(uploader, 0, 3);
+        uploader.flush();
+
+        awaitFixes(3);
+        assertEquals(3, requests.get());
+        assertEquals(2.0, uploader.getState().get("failedAttempts"));
+        await(() -> (int) uploader.getState().get("spooledBatches") == 0);
+        uploader.close();
+    }
+
+    @Test
+    public void rejectedBatchesAreDropped() throws Exception {
+        statuses = new int[]{400, 200};
+        LocationUploader uploader = new LocationUploader(config(10), spool);
+        addFixes(uploader, 0, 3);
+        uploader.flush();
+        await(() -> (double) uploader.getState().get("droppedBatches") == 1);
+
+        addFixes(uploader, 3, 2);
+        uploader.flush();
+        awaitFixes(2);
+        assertEquals(2, requests.get());
+        uploader.close();
+    }
+
+    @Test
+    public void reconfiguringDoesNotSendBatchesTwice() throws Exception {
+        // Slow enough that the first uploader is still sending when it is replaced
+        delayMillis = 20;
+        LocationUploader first = new LocationUploader(config(5), spool);
+        addFixes(first, 0, 50);
+        first.close();
+        LocationUploader second = new LocationUploader(config(5), spool);
+        addFixes(second, 50, 7);
+        second.flush();
+
+        awaitFixes(57);
+        assertUniqueFixes(57);
+        second.close();
+    }
+
+    @Test
+    public void spoolSurvivesWhileEndpointIsDown() throws Exception {
+        LocationUploader.Config down = config(10);
+        down.endpoint = new URL("http://127.0.0.1:1/fixes");
+        down.initialBackoffMillis = 60_000;
+        LocationUploader offline = new LocationUploader(down, spool);
+        addFixes(offline, 0, 25);
+        await(() -> (double) offline.getState().get("failedAttempts") >= 1);
+        offline.close();
+
+        LocationUploader online = new LocationUploader(config(10), spool);
+        awaitFixes(25);
+        assertUniqueFixes(25);
+        online.close();
+    }
+
+    private LocationUploader.Config config(int maxBatchSize) throws IOException {
+        LocationUploader.Config config = new LocationUploader.Config();
+        config.endpoint = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/fixes");
+        config.maxBatchSize = maxBatchSize;
+        config.maxBatchAgeMillis = 60_000;
+        config.initialBackoffMillis = 20;
+        config.maxBackoffMillis = 100;
+        return config;
+    }
+
+    private static void addFixes(LocationUploader uploader, int first, int count) {
+        for (int i = first; i < first + count; i++) {
+            uploader.onFix(1_700_000_000_000L + i * 1000L, 48.1 + i * 1e-5, 11.5, 520, 5, 1.4, 90);
+        }
+    }
+
+    private void awaitFixes(int count) throws InterruptedException {
+        await(() -> receivedFixes() >= count);
+        // Give duplicates a chance to show up
+        Thread.sleep(100);
+        assertEquals(count, receivedFixes());
+    }
+
+    private int receivedFixes() {
+        int count = 0;
+        synchronized (batches) {
+            for (long[] batch : batches) {
+                count += batch.length;
+            }
+        }
+        return count;
+    }
+
+    private void assertUniqueFixes(int count) {
+        HashSet<Long> times = new HashSet<>();
+        synchronized (batches) {
+            for (long[] batch : batches) {
+                for (long time : batch) {
+                    assertTrue("fix sent twice: " + time, times.add(time));
+                }
+            }
+        }
+        assertEquals(count, times.size());
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void await(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.holds()) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /** Returns the fix times of a gzipped {@link FixBatch}. */
+    private static long[] decodeTimes(byte[] body) throws IOException {
+        try (InputStream in = new GZIPInputStream(new java.io.ByteArrayInputStream(body))) {
+            for (byte magic : FixBatch.MAGIC) {
+                assertEquals(magic, (byte) in.read());
+            }
+            assertEquals(1, in.read());
+            long[] times = new long[(int) readVarint(in)];
+            long time = 0;
+            for (int i = 0; i < times.length; i++) {
+                for (int field = 0; field < FixBatch.FIELDS; field++) {
+                    long zigzag = readVarint(in);
+                    long delta = (zigzag >>> 1) ^ -(zigzag & 1);
+                    if (field == 0) {
+                        time += delta;
+                        times[i] = time;
+                    }
+                }
+            }
+            assertEquals(-1, in.read());
+            return times;
+        }
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Truncated batch");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
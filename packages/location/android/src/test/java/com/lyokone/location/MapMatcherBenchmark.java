@@ -0,0 +1,107 @@
+package com.lyokone.location;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures {@link RoadSegments} loading and {@link MapMatcher} throughput on
+ * the JVM, against a synthetic city: a 300 by 300 grid of streets about 100 m
+ * apart, some 180k segments. Only runs with
+ * {@code ./gradlew test -Dbenchmark=true}, and asserts bounds loose enough
+ * for a slow machine along with the match rate.
+ */
+public class MapMatcherBenchmark {
+    private static final int GRID = 300;
+    private static final double STEP_DEGREES = 0.001;
+    private static final double ROW_LATITUDE = 48.05;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        file = File.createTempFile("segments", ".bin");
+        writeGrid(file);
+    }
+
+    @After
+    public void tearDown() {
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void loadAndMatch() throws IOException {
+        long start = System.nanoTime();
+        RoadSegments segments = new RoadSegments(file.getPath(), 100);
+        double loadMillis = (System.nanoTime() - start) / 1e6;
+        assertEquals(2 * GRID * (GRID - 1), segments.size());
+
+        MapMatcher matcher = new MapMatcher(segments, 50, 8, 5, 10, 3, 30_000);
+        Random random = new Random(1);
+        int fixes = 200_000;
+        int onRoad = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < fixes; i++) {
+            // Driving east along one street, 10 m of noise
+            double longitude = 11.01 + (i % 2000) * 0.0001 + random.nextGaussian() * 10 / 74_000;
+            double latitude = ROW_LATITUDE + random.nextGaussian() * 10 / 111_320;
+            if (matcher.onFix(latitude, longitude, 10, i * 1000L)
+                    && Math.abs(matcher.getLatitude() - ROW_LATITUDE) < 1e-6) {
+                onRoad++;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        // About 200 ms and 370k fixes/s on a laptop
+        assertTrue("loading took " + loadMillis + " ms", loadMillis < 5_000);
+        assertTrue(fixes / seconds + " fixes/s", fixes / seconds > 20_000);
+        // Fixes near a crossing may snap onto the cross street, about a fifth of them
+        assertTrue(onRoad > 0.7 * fixes);
+    }
+
+    /** Writes a SEG1 file of east-west and north-south segments between grid points. */
+    private static void writeGrid(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 2 * GRID * GRID * 24).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(new byte[]{'S', 'E', 'G', '1'}).putInt(0);
+        int count = 0;
+        for (int i = 0; i < GRID; i++) {
+            for (int j = 0; j < GRID; j++) {
+                double latitude = 48 + i * STEP_DEGREES;
+                double longitude = 11 + j * STEP_DEGREES;
+                if (j + 1 < GRID) {
+                    putSegment(buffer, count++, latitude, longitude, latitude, longitude + STEP_DEGREES);
+                }
+                if (i + 1 < GRID) {
+                    putSegment(buffer, count++, latitude, longitude, latitude + STEP_DEGREES, longitude);
+                }
+            }
+        }
+        buffer.putInt(4, count);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(buffer.array(), 0, buffer.position());
+        }
+    }
+
+    private static void putSegment(ByteBuffer buffer, long id, double latitude1, double longitude1,
+                                   double latitude2, double longitude2) {
+        buffer.putLong(id)
+                .putInt((int) Math.round(latitude1 * 1e7))
+                .putInt((int) Math.round(longitude1 * 1e7))
+                .putInt((int) Math.round(latitude2 * 1e7))
+                .putInt((int) Math.round(longitude2 * 1e7));
+    }
+}
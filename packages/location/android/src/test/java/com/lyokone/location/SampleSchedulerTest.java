@@ -0,0 +1,145 @@
+package com.lyokone.location;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+public class SampleSchedulerTest {
+    private static final long HOUR = 3_600_000;
+    private static final long MINUTE = 60_000;
+
+    private final SampleScheduler scheduler = new SampleScheduler(new Random(7));
+
+    @Test
+    public void alignsOnThePeriodShiftedByTheOffset() {
+        assertEquals(HOUR, SampleScheduler.nextAligned(HOUR, 0, 5_000));
+        assertEquals(2 * HOUR, SampleScheduler.nextAligned(HOUR, 0, HOUR));
+        assertEquals(15 * MINUTE, SampleScheduler.nextAligned(HOUR, 15 * MINUTE, 5_000));
+        assertEquals(-1_000, SampleScheduler.nextAligned(1_000, 0, -1_500));
+        assertEquals(0, SampleScheduler.nextAligned(1_000, 0, -1_000));
+    }
+
+    @Test
+    public void jitterDelaysSlotsWithinItsBound() {
+        scheduler.put(schedule("a", MINUTE, 0, 0, 10_000, false), 0);
+        SampleScheduler.Schedule schedule = scheduler.getSchedules().get(0);
+        ArrayList<SampleScheduler.Schedule> due = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            long jitter = schedule.slotMillis - schedule.alignedMillis;
+            assertTrue(jitter >= 0 && jitter < 10_000);
+            assertEquals(0, schedule.alignedMillis % MINUTE);
+            scheduler.collectDue(schedule.slotMillis, due);
+        }
+        assertEquals(1000, due.size());
+    }
+
+    @Test
+    public void overlappingWindowsShareAWakeup() {
+        scheduler.put(schedule("a", HOUR, 0, 10 * MINUTE, 0, false), HOUR - 1);
+        scheduler.put(schedule("b", HOUR, 5 * MINUTE, 10 * MINUTE, 0, false), HOUR - 1);
+        scheduler.put(schedule("c", HOUR, 20 * MINUTE, 10 * MINUTE, 0, false), HOUR - 1);
+
+        assertEquals(HOUR + 10 * MINUTE, scheduler.getWakeupMillis());
+        assertEquals(HOUR + 5 * MINUTE, scheduler.getWindowStartMillis());
+
+        ArrayList<SampleScheduler.Schedule> due = new ArrayList<>();
+        scheduler.collectDue(scheduler.getWakeupMillis(), due);
+        assertEquals(2, due.size());
+        assertEquals("a", due.get(0).id);
+        assertEquals("b", due.get(1).id);
+        assertEquals(HOUR + 30 * MINUTE, scheduler.getWakeupMillis());
+    }
+
+    @Test
+    public void missedSlotsAreSkipped() {
+        scheduler.put(schedule("a", MINUTE, 0, 0, 0, false), 0);
+        ArrayList<SampleScheduler.Schedule> due = new ArrayList<>();
+        scheduler.collectDue(10 * MINUTE + 5, due);
+
+        assertEquals(1, due.size());
+        assertEquals(11 * MINUTE, scheduler.getWakeupMillis());
+    }
+
+    @Test
+    public void wakeupIsExactOnlyWhenItServesAnExactSchedule() {
+        scheduler.put(schedule("inexact", HOUR, 0, 0, 0, false), 0);
+        scheduler.put(schedule("exact", HOUR, 30 * MINUTE, 0, 0, true), 0);
+        assertTrue(scheduler.isWakeupExact());
+
+        scheduler.collectDue(30 * MINUTE, new ArrayList<>());
+        assertEquals(HOUR, scheduler.getWakeupMillis());
+        assertFalse(scheduler.isWakeupExact());
+    }
+
+    @Test
+    public void putReplacesTheScheduleWithTheSameId() {
+        scheduler.put(schedule("a", HOUR, 0, 0, 0, false), 0);
+        scheduler.put(schedule("a", MINUTE, 0, 0, 0, true), 0);
+
+        assertEquals(1, scheduler.getSchedules().size());
+        assertEquals(MINUTE, scheduler.getWakeupMillis());
+        assertTrue(scheduler.remove("a"));
+        assertFalse(scheduler.remove("a"));
+        assertEquals(Long.MAX_VALUE, scheduler.getWakeupMillis());
+    }
+
+    @Test
+    public void jsonKeepsSchedulesAndSlots() throws JSONException {
+        scheduler.put(schedule("a", HOUR, 5 * MINUTE, 10 * MINUTE, MINUTE, false), 1_000);
+        scheduler.put(new SampleScheduler.Schedule("b", MINUTE, 0, 0, 0, 104, 25.5f, 4_000, true, true), 1_000);
+
+        SampleScheduler restored = new SampleScheduler(new Random());
+        restored.restoreJson(scheduler.toJson());
+
+        List<SampleScheduler.Schedule> expected = scheduler.getSchedules();
+        List<SampleScheduler.Schedule> actual = restored.getSchedules();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            SampleScheduler.Schedule a = expected.get(i);
+            SampleScheduler.Schedule b = actual.get(i);
+            assertEquals(a.id, b.id);
+            assertEquals(a.periodMillis, b.periodMillis);
+            assertEquals(a.offsetMillis, b.offsetMillis);
+            assertEquals(a.windowMillis, b.windowMillis);
+            assertEquals(a.jitterMillis, b.jitterMillis);
+            assertEquals(a.priority, b.priority);
+            assertEquals(a.accuracyMeters, b.accuracyMeters, 0);
+            assertEquals(a.deadlineMillis, b.deadlineMillis);
+            assertEquals(a.deliver, b.deliver);
+            assertEquals(a.exact, b.exact);
+            assertEquals(a.alignedMillis, b.alignedMillis);
+            assertEquals(a.slotMillis, b.slotMillis);
+        }
+        assertEquals(scheduler.getWakeupMillis(), restored.getWakeupMillis());
+        assertEquals(scheduler.isWakeupExact(), restored.isWakeupExact());
+    }
+
+    @Test
+    public void malformedJsonKeepsTheSchedulesReadBefore() {
+        scheduler.put(schedule("a", HOUR, 0, 0, 0, false), 0);
+        String json = scheduler.toJson();
+        String truncated = json.substring(0, json.length() - 1) + ",{\"id\":\"b\"}]";
+
+        SampleScheduler restored = new SampleScheduler(new Random());
+        try {
+            restored.restoreJson(truncated);
+            fail("Expected a JSONException");
+        } catch (JSONException e) {
+            assertEquals(1, restored.getSchedules().size());
+            assertEquals("a", restored.getSchedules().get(0).id);
+        }
+    }
+
+    private static SampleScheduler.Schedule schedule(String id, long period, long offset, long window, long jitter,
+                                                     boolean exact) {
+        return new SampleScheduler.Schedule(id, period, offset, window, jitter, 100, 50, 9_000, false, exact);
+    }
+}
@@ -0,0 +1,302 @@
+package com.lyokone.location;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Drives {@link SessionController} the way {@link FlutterLocation} does:
+ * listen and cancel add and remove a consumer around start and stop,
+ * getLocation holds a pending result while the updates run, changeSettings
+ * restarts them and fixes arrive on their own thread.
+ */
+public class SessionControllerTest {
+    private static final class FakeUpdates implements SessionController.Updates {
+        final AtomicInteger consumers = new AtomicInteger();
+        final AtomicInteger pendingResults = new AtomicInteger();
+        final AtomicBoolean registered = new AtomicBoolean();
+        final AtomicInteger registrations = new AtomicInteger();
+        volatile String violation;
+        // Runs once, right after the next check of isNeeded
+        volatile Runnable afterNeededCheck;
+
+        @Override
+        public void register() {
+            if (!registered.compareAndSet(false, true)) {
+                violation = "registered twice";
+            }
+            registrations.incrementAndGet();
+        }
+
+        @Override
+        public void unregister() {
+            if (!registered.compareAndSet(true, false)) {
+                violation = "removed while not registered";
+            }
+        }
+
+        @Override
+        public boolean isNeeded() {
+            boolean needed = consumers.get() > 0 || pendingResults.get() > 0;
+            Runnable hook = afterNeededCheck;
+            if (hook != null) {
+                afterNeededCheck = null;
+                hook.run();
+            }
+            return needed;
+        }
+    }
+
+    private final Object lock = new Object();
+    private final FakeUpdates updates = new FakeUpdates();
+    private final SessionController session = new SessionController(lock, updates);
+
+    @Test
+    public void startRegistersOnce() {
+        assertTrue(session.start());
+        assertFalse(session.start());
+        session.onFix();
+        assertFalse(session.start());
+
+        assertEquals(SessionState.STREAMING, session.get());
+        assertEquals(1, updates.registrations.get());
+    }
+
+    @Test
+    public void stopKeepsUpdatesWhileNeeded() {
+        updates.consumers.incrementAndGet();
+        session.start();
+        assertFalse(session.stop());
+        assertTrue(updates.registered.get());
+
+        updates.consumers.decrementAndGet();
+        assertTrue(session.stop());
+        assertFalse(updates.registered.get());
+        assertEquals(SessionState.IDLE, session.get());
+    }
+
+    @Test(timeout = 10_000)
+    public void listenDuringStopKeepsUpdates() throws InterruptedException {
+        session.start();
+        Thread listener = new Thread(() -> {
+            updates.consumers.incrementAndGet();
+            session.start();
+        });
+        updates.afterNeededCheck = () -> {
+            listener.start();
+            try {
+                // Lets the listener finish, unless the lock holds it back until the stop is done
+                listener.join(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        session.stop();
+        listener.join();
+
+        assertTrue(updates.registered.get());
+        assertTrue(session.isRunning());
+        assertNull(updates.violation);
+    }
+
+    @Test
+    public void oneShotWaitsThenStarts() {
+        session.addOneShot();
+        assertEquals(SessionState.ONE_SHOT_PENDING, session.get());
+        assertTrue(session.start());
+        assertTrue(updates.registered.get());
+    }
+
+    @Test
+    public void failRemovesRunningUpdates() {
+        session.start();
+        session.fail();
+        assertEquals(SessionState.ERRORED, session.get());
+        assertFalse(updates.registered.get());
+
+        // Nothing left to remove
+        session.fail();
+        assertNull(updates.violation);
+
+        // The next request starts over
+        assertTrue(session.start());
+        assertTrue(updates.registered.get());
+    }
+
+    @Test
+    public void restartRegistersRunningUpdatesAgain() {
+        session.start();
+        session.onFix();
+        AtomicBoolean unregisteredMeanwhile = new AtomicBoolean();
+        session.restart(() -> unregisteredMeanwhile.set(!updates.registered.get()));
+
+        assertTrue(unregisteredMeanwhile.get());
+        assertTrue(updates.registered.get());
+        assertEquals(SessionState.REQUESTING, session.get());
+        assertEquals(2, updates.registrations.get());
+    }
+
+    @Test
+    public void restartLeavesIdleUpdatesAlone() {
+        session.restart(() -> { });
+        assertFalse(updates.registered.get());
+        assertEquals(0, updates.registrations.get());
+    }
+
+    @Test(timeout = 60_000)
+    public void racingListenCancelGetLocationAndSettings() throws Throwable {
+        AtomicBoolean done = new AtomicBoolean();
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        CountDownLatch go = new CountDownLatch(1);
+
+        for (int t = 0; t < 4; t++) {
+            final Random random = new Random(t);
+            threads.add(worker(go, failures, () -> {
+                for (int i = 0; i < 50_000; i++) {
+                    switch (random.nextInt(3)) {
+                        case 0:
+                            // listen then cancel, no concurrent stop may remove the updates meanwhile
+                            updates.consumers.incrementAndGet();
+                            session.start();
+                            assertRegistered();
+                            updates.consumers.decrementAndGet();
+                            session.stop();
+                            break;
+                        case 1:
+                            // getLocation, answered by a fix
+                            updates.pendingResults.incrementAndGet();
+                            session.addOneShot();
+                            session.start();
+                            assertRegistered();
+                            updates.pendingResults.decrementAndGet();
+                            session.stop();
+                            break;
+                        default:
+                            // changeSettings
+                            session.restart(() -> { });
+                            session.start();
+                            break;
+                    }
+                }
+            }));
+        }
+        threads.add(worker(go, failures, () -> {
+            while (!done.get()) {
+                session.onFix();
+            }
+        }));
+        threads.add(worker(go, failures, () -> {
+            while (!done.get()) {
+                synchronized (lock) {
+                    assertEquals(session.isRunning(), updates.registered.get());
+                }
+            }
+        }));
+
+        go.countDown();
+        for (int i = 0; i < 4; i++) {
+            threads.get(i).join();
+        }
+        done.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        rethrow(failures);
+        assertNull(updates.violation);
+
+        session.stop();
+        assertFalse(updates.registered.get());
+        assertEquals(SessionState.IDLE, session.get());
+    }
+
+    @Test(timeout = 60_000)
+    public void racingErrorsNeverLeakUpdates() throws Throwable {
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        CountDownLatch go = new CountDownLatch(1);
+
+        for (int t = 0; t < 4; t++) {
+            final Random random = new Random(t);
+            threads.add(worker(go, failures, () -> {
+                for (int i = 0; i < 50_000; i++) {
+                    switch (random.nextInt(4)) {
+                        case 0:
+                            updates.consumers.incrementAndGet();
+                            session.start();
+                            session.onFix();
+                            updates.consumers.decrementAndGet();
+                            session.stop();
+                            break;
+                        case 1:
+                            session.fail();
+                            break;
+                        case 2:
+                            session.restart(() -> { });
+                            break;
+                        default:
+                            synchronized (lock) {
+                                assertEquals(session.isRunning(), updates.registered.get());
+                            }
+                            break;
+                    }
+                }
+            }));
+        }
+
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        rethrow(failures);
+        assertNull(updates.violation);
+
+        session.stop();
+        assertFalse(updates.registered.get());
+        assertEquals(SessionState.IDLE, session.get());
+    }
+
+    private void assertRegistered() {
+        synchronized (lock) {
+            assertTrue(updates.registered.get());
+            assertTrue(session.isRunning());
+        }
+    }
+
+    private interface Body {
+        void run() throws Exception;
+    }
+
+    private static Thread worker(CountDownLatch go, List<Throwable> failures, Body body) {
+        Thread thread = new Thread(() -> {
+            try {
+                go.await();
+                body.run();
+            } catch (Throwable e) {
+                synchronized (failures) {
+                    failures.add(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void rethrow(List<Throwable> failures) throws Throwable {
+        synchronized (failures) {
+            if (!failures.isEmpty()) {
+                throw failures.get(0);
+            }
+        }
+    }
+}
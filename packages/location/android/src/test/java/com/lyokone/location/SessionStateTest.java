@@ -0,0 +1,62 @@
+package com.lyokone.location;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SessionStateTest {
+    @Test
+    public void startsIdle() {
+        assertEquals(SessionState.IDLE, new SessionState().get());
+    }
+
+    @Test
+    public void advancesOnlyFromAllowedStates() {
+        SessionState state = new SessionState();
+        assertEquals(-1, state.advance(SessionState.bit(SessionState.REQUESTING), SessionState.STREAMING));
+        assertEquals(SessionState.IDLE, state.get());
+
+        assertEquals(SessionState.IDLE, state.advance(SessionState.bit(SessionState.IDLE), SessionState.REQUESTING));
+        assertEquals(SessionState.REQUESTING,
+                state.advance(SessionState.bit(SessionState.REQUESTING), SessionState.STREAMING));
+        assertEquals(SessionState.STREAMING, state.advance(~0, SessionState.ERRORED));
+        assertEquals("errored", SessionState.name(state.get()));
+    }
+
+    @Test(timeout = 30_000)
+    public void racingAdvancesHaveOneWinner() throws InterruptedException {
+        SessionState state = new SessionState();
+        AtomicInteger starts = new AtomicInteger();
+        AtomicInteger stops = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        CountDownLatch go = new CountDownLatch(1);
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 100_000; i++) {
+                    if (state.advance(SessionState.bit(SessionState.IDLE), SessionState.REQUESTING) != -1) {
+                        starts.incrementAndGet();
+                    }
+                    if (state.advance(SessionState.bit(SessionState.REQUESTING), SessionState.IDLE) != -1) {
+                        stops.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Every transition out of a state was preceded by exactly one into it
+        assertEquals(state.get() == SessionState.REQUESTING ? 1 : 0, starts.get() - stops.get());
+    }
+}
@@ -0,0 +1,136 @@
+package com.lyokone.location;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Feeds synthetic walks into {@link StayPointSegmenter}, one fix every 30
+ * seconds, with a 100 m radius and a five minute threshold. Positions are
+ * given in meters north of a fixed origin.
+ */
+public class StayPointSegmenterTest {
+    private static final double ORIGIN_LATITUDE = 48.1;
+    private static final double ORIGIN_LONGITUDE = 11.5;
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * 6_371_000;
+    private static final long INTERVAL_MILLIS = 30_000;
+
+    private final List<String> events = new ArrayList<>();
+    private final List<long[]> stays = new ArrayList<>();
+    private final List<double[]> trips = new ArrayList<>();
+    private final StayPointSegmenter segmenter = new StayPointSegmenter(100, 5 * 60_000,
+            new StayPointSegmenter.Listener() {
+                @Override
+                public void onTripStart(long timeMillis, double latitude, double longitude) {
+                    events.add("tripStart");
+                }
+
+                @Override
+                public void onTripEnd(long startMillis, long endMillis, double distanceMeters,
+                                      double latitude, double longitude) {
+                    events.add("tripEnd");
+                    trips.add(new double[]{startMillis, endMillis, distanceMeters, northOf(latitude)});
+                }
+
+                @Override
+                public void onStop(StayPointSegmenter.StayPoint stayPoint) {
+                    events.add("stop");
+                    stays.add(new long[]{stayPoint.arrivalMillis, stayPoint.departureMillis,
+                            stayPoint.fixCount});
+                }
+            });
+    private long now;
+
+    @Test
+    public void stayIsConfirmedAfterTheThreshold() {
+        for (int i = 0; i < 10; i++) {
+            fix(0);
+            assertFalse(segmenter.isAtStay());
+        }
+        // The eleventh fix is five minutes after the first
+        fix(0);
+        assertTrue(segmenter.isAtStay());
+
+        fix(500);
+        assertFalse(segmenter.isAtStay());
+        assertEquals(1, stays.size());
+        assertEquals(0, stays.get(0)[0]);
+        assertEquals(10 * INTERVAL_MILLIS, stays.get(0)[1]);
+        assertEquals(11, stays.get(0)[2]);
+    }
+
+    @Test
+    public void jitterInsideTheRadiusKeepsOneStay() {
+        Random random = new Random(3);
+        for (int i = 0; i < 60; i++) {
+            fix(random.nextDouble() * 80 - 40);
+            if (i >= 10) {
+                assertTrue(segmenter.isAtStay());
+            }
+        }
+        fix(500);
+
+        assertEquals(1, stays.size());
+        assertEquals(59 * INTERVAL_MILLIS, stays.get(0)[1] - stays.get(0)[0]);
+        assertEquals(60, stays.get(0)[2]);
+    }
+
+    @Test
+    public void tripIsEmittedBetweenTwoStays() {
+        stay(0, 20);
+        long departure = now - INTERVAL_MILLIS;
+        // 1050 m north in steps longer than the radius
+        for (int i = 1; i < 7; i++) {
+            fix(i * 150);
+        }
+        long arrival = now;
+        stay(1050, 20);
+
+        assertEquals(1, trips.size());
+        assertEquals(1, stays.size());
+        double[] trip = trips.get(0);
+        assertEquals(departure, (long) trip[0]);
+        assertEquals(arrival, (long) trip[1]);
+        assertEquals(1050, trip[2], 1);
+        assertEquals(1050, trip[3], 1);
+        assertEquals(departure, stays.get(0)[1]);
+        assertEquals("[stop, tripStart, tripEnd]", events.toString());
+    }
+
+    @Test
+    public void shortDwellIsNoStay() {
+        for (int i = 0; i < 5; i++) {
+            fix(i * 200);
+        }
+        // Four minutes at the same place
+        stay(1000, 9);
+        for (int i = 1; i <= 5; i++) {
+            fix(1000 + i * 200);
+        }
+
+        assertTrue(stays.isEmpty());
+        assertTrue(trips.isEmpty());
+        assertEquals("[tripStart]", events.toString());
+    }
+
+    private void stay(double north, int fixes) {
+        for (int i = 0; i < fixes; i++) {
+            fix(north);
+        }
+    }
+
+    private void fix(double north) {
+        segmenter.onFix(ORIGIN_LATITUDE + north / METERS_PER_DEGREE, ORIGIN_LONGITUDE, now);
+        now += INTERVAL_MILLIS;
+    }
+
+    private static double northOf(double latitude) {
+        return (latitude - ORIGIN_LATITUDE) * METERS_PER_DEGREE;
+    }
+}
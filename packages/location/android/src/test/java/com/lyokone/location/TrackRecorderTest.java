@@ -0,0 +1,122 @@
+package com.lyokone.location;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Records to a temporary file whose writes fail while the disk is full. */
+public class TrackRecorderTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private static final class FullDiskFile extends RandomAccessFile {
+        volatile boolean full;
+
+        FullDiskFile(File file) throws IOException {
+            super(file, "rw");
+        }
+
+        @Override
+        public void write(byte[] bytes) throws IOException {
+            if (full) {
+                throw new IOException("No space left on device");
+            }
+            super.write(bytes);
+        }
+    }
+
+    private File file;
+    private final AtomicReference<FullDiskFile> output = new AtomicReference<>();
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("track", ".gpx").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void stopReportsAFailedLastWrite() throws Exception {
+        TrackRecorder recorder = start(60 * 60_000);
+        output.get().full = true;
+        addFixes(recorder, 3);
+
+        IOException error = stop(recorder);
+        assertNotNull(error);
+        assertEquals("No space left on device", error.getMessage());
+        assertTrue(((String) recorder.getStats().get("lastError")).contains("No space left on device"));
+    }
+
+    @Test
+    public void failedFlushIsWrittenByTheNextOne() throws Exception {
+        TrackRecorder recorder = start(20);
+        output.get().full = true;
+        addFixes(recorder, 3);
+        long deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+        while (recorder.getStats().get("lastError") == null) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        output.get().full = false;
+
+        assertNull(stop(recorder));
+        String gpx = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertEquals(3, gpx.split("<trkpt ", -1).length - 1);
+        assertTrue(gpx.endsWith("</gpx>\n"));
+    }
+
+    private TrackRecorder start(long flushIntervalMillis) throws Exception {
+        TrackRecorder recorder = new TrackRecorder(file, TrackRecorder.FORMAT_GPX, flushIntervalMillis,
+                target -> {
+                    FullDiskFile opened = new FullDiskFile(target);
+                    output.set(opened);
+                    return opened;
+                });
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicReference<IOException> error = new AtomicReference<>();
+        recorder.start((value, e) -> {
+            error.set(e);
+            started.countDown();
+        });
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNull(error.get());
+        return recorder;
+    }
+
+    private static IOException stop(TrackRecorder recorder) throws InterruptedException {
+        CountDownLatch stopped = new CountDownLatch(1);
+        AtomicReference<IOException> error = new AtomicReference<>();
+        AtomicReference<Map<String, Object>> stats = new AtomicReference<>();
+        recorder.stop((value, e) -> {
+            stats.set(value);
+            error.set(e);
+            stopped.countDown();
+        });
+        assertTrue(stopped.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNotNull(stats.get());
+        return error.get();
+    }
+
+    private static void addFixes(TrackRecorder recorder, int count) {
+        for (int i = 0; i < count; i++) {
+            recorder.onFix(1_700_000_000_000L + i * 1000L, 48.1 + i * 1e-4, 11.5, 520, 5, 1.4, 90);
+        }
+    }
+}